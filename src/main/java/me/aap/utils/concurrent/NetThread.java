@@ -6,6 +6,8 @@ import androidx.annotation.Nullable;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 
+import javax.net.ssl.SSLSession;
+
 import me.aap.utils.BuildConfig;
 import me.aap.utils.log.Log;
 import me.aap.utils.security.SecurityUtils;
@@ -39,7 +41,10 @@ public class NetThread extends PooledThread {
 		}
 
 		try {
-			int s = SecurityUtils.createClientSslEngine("localhost", 80).getSession().getPacketBufferSize();
+			SSLSession ss = SecurityUtils.createClientSslEngine("localhost", 80).getSession();
+			int s = ss.getPacketBufferSize();
+			// Large enough to unwrap an SSL record directly to the read buffer
+			r = Math.max(r, ss.getApplicationBufferSize());
 			sr = Math.max(s, (r / s) * s);
 			sw = Math.max(s, (w / s) * s);
 		} catch (Throwable ex) {
@@ -0,0 +1,79 @@
+package me.aap.utils.concurrent;
+
+import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A counter, that is cheap to update from multiple threads. Until the first contention, the
+ * counter is a single atomic long. On contention, the updates are spread over the cells, selected
+ * by the thread id. The cells are padded to separate cache lines.
+ *
+ * @author Andrey Pavlenko
+ */
+public final class StripedCounter {
+	private static final AtomicLongFieldUpdater<StripedCounter> BASE =
+			AtomicLongFieldUpdater.newUpdater(StripedCounter.class, "base");
+	private static final AtomicReferenceFieldUpdater<StripedCounter, AtomicLongArray> CELLS =
+			AtomicReferenceFieldUpdater.newUpdater(StripedCounter.class, AtomicLongArray.class, "cells");
+	// 8 longs - 64 bytes between the cells
+	private static final int STRIDE = 8;
+	private static final int MASK;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile long base;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile AtomicLongArray cells;
+
+	static {
+		int n = 1;
+		while (n < Runtime.getRuntime().availableProcessors()) n <<= 1;
+		MASK = n - 1;
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void decrement() {
+		add(-1);
+	}
+
+	public void add(long n) {
+		AtomicLongArray c = cells;
+
+		if (c == null) {
+			long b = base;
+			if (BASE.compareAndSet(this, b, b + n)) return;
+			c = new AtomicLongArray((MASK + 1) * STRIDE);
+			if (!CELLS.compareAndSet(this, null, c)) c = cells;
+		}
+
+		c.getAndAdd((int) (Thread.currentThread().getId() & MASK) * STRIDE, n);
+	}
+
+	/**
+	 * Returns the current sum. The concurrent updates may or may not be included.
+	 */
+	public long sum() {
+		long sum = base;
+		AtomicLongArray c = cells;
+		if (c == null) return sum;
+
+		for (int i = 0, n = c.length(); i < n; i += STRIDE) {
+			sum += c.get(i);
+		}
+
+		return sum;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.valueOf(sum());
+	}
+}
@@ -0,0 +1,235 @@
+package me.aap.utils.concurrent;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import me.aap.utils.function.Cancellable;
+import me.aap.utils.log.Log;
+
+/**
+ * Hashed timing wheel. The timeouts are placed into the buckets by the deadline tick, insertion
+ * and cancellation are O(1). The wheel does not have its own thread - the owner must call
+ * {@link #tick()} after the delay, returned by the previous call, or when woken up. The expired
+ * timeouts are run in the calling thread.
+ * The timeouts may be scheduled and cancelled from any thread.
+ * <p>
+ * Each bucket keeps a lower bound of its deadlines, thus the earliest deadline is found by
+ * scanning the buckets, not the timeouts. A bound, left by a cancelled timeout, is refreshed
+ * when the bucket is expired.
+ *
+ * @author Andrey Pavlenko
+ */
+public class TimingWheel {
+	private final Timeout[] wheel;
+	// The lower bounds of the buckets' deadlines
+	private final long[] bucketMin;
+	private final int mask;
+	private final long tickMillis;
+	private final long startTime;
+	@Nullable
+	private final Runnable wakeup;
+	private long tick;
+	// The lower bound of the earliest pending deadline, the owner is woken up if a timeout with
+	// an earlier deadline is scheduled
+	private long next = Long.MAX_VALUE;
+	private int size;
+
+	/**
+	 * @param tickMillis the tick duration in milliseconds
+	 * @param wheelSize  the number of buckets, rounded up to a power of two
+	 * @param wakeup     called when a timeout, expiring earlier than all the pending timeouts, is
+	 *                   added, may be used to wake up the thread calling {@link #tick()}
+	 */
+	public TimingWheel(long tickMillis, int wheelSize, @Nullable Runnable wakeup) {
+		int n = 1;
+		while (n < wheelSize) n <<= 1;
+		this.wheel = new Timeout[n];
+		this.bucketMin = new long[n];
+		Arrays.fill(bucketMin, Long.MAX_VALUE);
+		this.mask = n - 1;
+		this.tickMillis = Math.max(tickMillis, 1);
+		this.wakeup = wakeup;
+		startTime = now();
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public Cancellable schedule(Runnable task, long delay, TimeUnit unit) {
+		Task t = new Task(task);
+		schedule(t, unit.toMillis(delay));
+		return t;
+	}
+
+	public void schedule(Timeout t, long delayMillis) {
+		long deadline = (now() - startTime + Math.max(delayMillis, 0) + tickMillis - 1) / tickMillis;
+		boolean wake;
+
+		synchronized (this) {
+			if (t.wheel != null) throw new IllegalStateException("Timeout is already scheduled");
+			if (deadline < tick) deadline = tick;
+			int idx = (int) (deadline & mask);
+			Timeout head = wheel[idx];
+			t.wheel = this;
+			t.deadline = deadline;
+			t.prev = null;
+			t.next = head;
+			if (head != null) head.prev = t;
+			wheel[idx] = t;
+			if (deadline < bucketMin[idx]) bucketMin[idx] = deadline;
+			size++;
+
+			if (deadline < next) {
+				next = deadline;
+				wake = true;
+			} else {
+				wake = false;
+			}
+		}
+
+		if (wake && (wakeup != null)) wakeup.run();
+	}
+
+	/**
+	 * Expire the timeouts, which deadline has passed.
+	 *
+	 * @return the number of milliseconds until the earliest pending timeout expiration or 0 if
+	 * there are no pending timeouts
+	 */
+	public long tick() {
+		long now = now() - startTime;
+		long target = now / tickMillis;
+		Timeout expired = null;
+		long nextTick;
+
+		synchronized (this) {
+			if (size == 0) {
+				tick = target + 1;
+				next = Long.MAX_VALUE;
+				return 0;
+			}
+
+			if (target < next) {
+				tick = target + 1;
+				return next * tickMillis - now;
+			}
+
+			long n = Math.min(target - tick + 1, wheel.length);
+
+			for (long i = 0; i < n; i++, tick++) {
+				int idx = (int) (tick & mask);
+				long min = Long.MAX_VALUE;
+
+				for (Timeout t = wheel[idx], next; t != null; t = next) {
+					next = t.next;
+
+					if (t.deadline > target) {
+						if (t.deadline < min) min = t.deadline;
+						continue;
+					}
+
+					unlink(t, idx);
+					t.next = expired;
+					expired = t;
+				}
+
+				bucketMin[idx] = min;
+			}
+
+			tick = target + 1;
+			nextTick = next = nextDeadline();
+		}
+
+		for (Timeout t = expired, next; t != null; t = next) {
+			next = t.next;
+			t.next = null;
+
+			try {
+				t.expired();
+			} catch (Throwable ex) {
+				Log.e(ex, "Timeout task failed");
+			}
+		}
+
+		return (nextTick == Long.MAX_VALUE) ? 0 : Math.max(nextTick * tickMillis - now, 1);
+	}
+
+	// The scan is bounded by the wheel size. The result may be earlier than the actual deadline,
+	// if the earliest timeout of a bucket has been cancelled, causing an extra tick, that refreshes
+	// the bucket's bound.
+	private long nextDeadline() {
+		if (size == 0) return Long.MAX_VALUE;
+		long min = Long.MAX_VALUE;
+
+		for (long m : bucketMin) {
+			if (m < min) {
+				if (m <= tick) return tick;
+				min = m;
+			}
+		}
+
+		return min;
+	}
+
+	synchronized boolean cancel(Timeout t) {
+		if (t.wheel != this) return false;
+		unlink(t, (int) (t.deadline & mask));
+		t.next = null;
+		return true;
+	}
+
+	private void unlink(Timeout t, int idx) {
+		Timeout prev = t.prev;
+		Timeout next = t.next;
+		if (prev == null) wheel[idx] = next;
+		else prev.next = next;
+		if (next != null) next.prev = prev;
+		else if (prev == null) bucketMin[idx] = Long.MAX_VALUE;
+		t.prev = null;
+		t.wheel = null;
+		size--;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * A timeout, that could be scheduled on a wheel. The same instance may be re-scheduled
+	 * after expiration or cancellation.
+	 */
+	public static abstract class Timeout implements Cancellable {
+		volatile TimingWheel wheel;
+		Timeout prev;
+		Timeout next;
+		long deadline;
+
+		protected abstract void expired();
+
+		@Override
+		public boolean cancel() {
+			TimingWheel w = wheel;
+			return (w != null) && w.cancel(this);
+		}
+	}
+
+	private static final class Task extends Timeout {
+		private final Runnable task;
+
+		Task(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		protected void expired() {
+			task.run();
+		}
+	}
+}
@@ -30,7 +30,7 @@ public class ByteBufferOutputStream extends OutputStream {
 	@Override
 	public void write(int b) throws IOException {
 		try {
-			ensureCapacity(buf, 1, maxLen);
+			buf = ensureCapacity(buf, 1, maxLen);
 			buf.put((byte) b);
 		} catch (BufferOverflowException ex) {
 			throw new IOException(ex);
@@ -0,0 +1,168 @@
+package me.aap.utils.net;
+
+import androidx.annotation.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.aap.utils.log.Log;
+
+/**
+ * Detects the pooled buffers, that have been garbage collected without being returned to the
+ * {@link ByteBufferPool}. A fraction of the allocated buffers, specified by
+ * {@link #setSampleRate(double)}, is tracked. When a tracked buffer is collected, the allocation
+ * and the last touch stack traces are logged.
+ * <p>
+ * The detector is disabled by default. When enabled with a low rate, the cost is a random number
+ * per allocation and a hash table lookup per release.
+ *
+ * @author Andrey Pavlenko
+ */
+public final class BufferLeakDetector {
+	private static final int TABLE_SIZE = 4096;
+	private static final int NLOCKS = 64;
+	private static final Tracker[] table = new Tracker[TABLE_SIZE];
+	private static final Object[] locks = new Object[NLOCKS];
+	private static final ReferenceQueue<ByteBuffer> queue = new ReferenceQueue<>();
+	private static final AtomicInteger tracked = new AtomicInteger();
+	private static final AtomicLong leaks = new AtomicLong();
+	// 0 - disabled, 1 - track all, n - track 1 of n allocations
+	private static volatile int interval;
+
+	static {
+		for (int i = 0; i < NLOCKS; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	private BufferLeakDetector() {
+	}
+
+	/**
+	 * Set the fraction of the allocated buffers to track: 0 - disabled, 1 - all, 0.01 - 1%.
+	 */
+	public static void setSampleRate(double rate) {
+		interval = (rate <= 0) ? 0 : (rate >= 1) ? 1 : (int) Math.round(1 / rate);
+	}
+
+	public static double getSampleRate() {
+		int i = interval;
+		return (i == 0) ? 0 : 1.0 / i;
+	}
+
+	/**
+	 * Returns the number of the detected leaks.
+	 */
+	public static long getLeakCount() {
+		return leaks.get();
+	}
+
+	/**
+	 * Returns the number of the tracked buffers, that have not been released yet.
+	 */
+	public static int getTrackedCount() {
+		return tracked.get();
+	}
+
+	/**
+	 * Report the tracked buffers, collected since the last check. Returns the number of the leaks.
+	 */
+	public static int checkLeaks() {
+		int n = 0;
+
+		for (Tracker t = (Tracker) queue.poll(); t != null; t = (Tracker) queue.poll()) {
+			if (!remove(t)) continue;
+			n++;
+			leaks.incrementAndGet();
+			Log.e(t.allocated, "LEAK: A pooled buffer of ", t.capacity,
+					" bytes has been garbage collected without being released");
+			Throwable touch = t.lastTouch;
+			if (touch != null) Log.e(touch, "LEAK: The last touch of the buffer");
+		}
+
+		return n;
+	}
+
+	static void allocated(ByteBuffer bb) {
+		int i = interval;
+		if (i == 0) return;
+		checkLeaks();
+		if ((i != 1) && (ThreadLocalRandom.current().nextInt(i) != 0)) return;
+
+		Tracker t = new Tracker(bb);
+		int idx = t.hash & (TABLE_SIZE - 1);
+
+		synchronized (locks[idx & (NLOCKS - 1)]) {
+			t.next = table[idx];
+			table[idx] = t;
+		}
+
+		tracked.incrementAndGet();
+	}
+
+	/**
+	 * Record the current stack trace as the last touch of the buffer, if it's tracked.
+	 */
+	public static void touch(ByteBuffer bb) {
+		if (tracked.get() == 0) return;
+		Tracker t = find(bb);
+		if (t != null) t.lastTouch = new Throwable("Touched by " + Thread.currentThread().getName());
+	}
+
+	static void released(ByteBuffer bb) {
+		if (tracked.get() == 0) return;
+		Tracker t = find(bb);
+		if ((t == null) || !remove(t)) return;
+		t.clear();
+	}
+
+	@Nullable
+	private static Tracker find(ByteBuffer bb) {
+		int idx = System.identityHashCode(bb) & (TABLE_SIZE - 1);
+
+		synchronized (locks[idx & (NLOCKS - 1)]) {
+			for (Tracker t = table[idx]; t != null; t = t.next) {
+				if (t.get() == bb) return t;
+			}
+		}
+
+		return null;
+	}
+
+	private static boolean remove(Tracker t) {
+		int idx = t.hash & (TABLE_SIZE - 1);
+
+		synchronized (locks[idx & (NLOCKS - 1)]) {
+			for (Tracker c = table[idx], prev = null; c != null; prev = c, c = c.next) {
+				if (c != t) continue;
+				if (prev == null) table[idx] = c.next;
+				else prev.next = c.next;
+				c.next = null;
+				tracked.decrementAndGet();
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	// A weak reference, because the buffer must be compared with the released one
+	private static final class Tracker extends WeakReference<ByteBuffer> {
+		final int hash;
+		final int capacity;
+		final Throwable allocated;
+		volatile Throwable lastTouch;
+		Tracker next;
+
+		Tracker(ByteBuffer bb) {
+			super(bb, queue);
+			hash = System.identityHashCode(bb);
+			capacity = bb.capacity();
+			allocated = new Throwable("Allocated by " + Thread.currentThread().getName());
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package me.aap.utils.net;
+
+import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Size-classed pool of direct byte buffers. The size classes are powers of two from
+ * {@link #MIN_SIZE} to {@link #MAX_SIZE}. Each thread keeps a small cache of the released
+ * buffers, the overflow goes to a shared per-class stack. Requests larger than {@link #MAX_SIZE}
+ * are served with non-pooled heap buffers.
+ * <p>
+ * A buffer obtained with {@link #allocate(int)} must be returned with {@link #release(ByteBuffer)}
+ * exactly once and must not be used after that. {@link #get(int)} returns a reference counted
+ * {@link Ref}, that returns the buffer to the pool when the last reference is released.
+ * The buffers, that are not returned to the pool, can be detected with {@link BufferLeakDetector}.
+ *
+ * @author Andrey Pavlenko
+ */
+public final class ByteBufferPool {
+	public static final int MIN_SIZE = 1 << 12;
+	public static final int MAX_SIZE = 1 << 16;
+	private static final int MIN_SHIFT = 12;
+	private static final int NCLASSES = 5;
+	private static final int LOCAL_CACHE_SIZE = 8;
+	private static final int SHARED_CACHE_SIZE = 64;
+	private static final Stack[] shared = new Stack[NCLASSES];
+	private static final ThreadLocal<Stack[]> local = new ThreadLocal<Stack[]>() {
+		@Override
+		protected Stack[] initialValue() {
+			Stack[] s = new Stack[NCLASSES];
+			for (int i = 0; i < NCLASSES; i++) {
+				s[i] = new Stack(LOCAL_CACHE_SIZE);
+			}
+			return s;
+		}
+	};
+
+	static {
+		for (int i = 0; i < NCLASSES; i++) {
+			shared[i] = new Stack(SHARED_CACHE_SIZE >> i);
+		}
+	}
+
+	private ByteBufferPool() {
+	}
+
+	/**
+	 * Returns a cleared buffer with the capacity of at least the specified size.
+	 */
+	public static ByteBuffer allocate(int size) {
+		int c = sizeClass(size);
+		if (c == -1) return ByteBuffer.allocate(size);
+
+		ByteBuffer bb = local.get()[c].pop();
+
+		if (bb == null) {
+			Stack s = shared[c];
+
+			synchronized (s) {
+				bb = s.pop();
+			}
+
+			if (bb == null) bb = ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+		}
+
+		bb.clear();
+		BufferLeakDetector.allocated(bb);
+		return bb;
+	}
+
+	/**
+	 * Returns the buffer to the pool. Non-pooled buffers are ignored.
+	 */
+	public static void release(ByteBuffer bb) {
+		if (!bb.isDirect() || bb.isReadOnly()) return;
+
+		int cap = bb.capacity();
+		if ((cap < MIN_SIZE) || (cap > MAX_SIZE) || ((cap & (cap - 1)) != 0)) return;
+
+		BufferLeakDetector.released(bb);
+		int c = Integer.numberOfTrailingZeros(cap) - MIN_SHIFT;
+		if (local.get()[c].push(bb)) return;
+
+		Stack s = shared[c];
+
+		synchronized (s) {
+			s.push(bb);
+		}
+	}
+
+	/**
+	 * Returns a pooled copy of the buffer's remaining bytes. The source buffer position is not changed.
+	 */
+	public static ByteBuffer copyOf(ByteBuffer src) {
+		ByteBuffer bb = allocate(src.remaining());
+		bb.put(src.duplicate());
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * Returns a reference to a pooled buffer. The reference count is initially 1.
+	 */
+	public static Ref get(int size) {
+		return new Ref(allocate(size));
+	}
+
+	private static int sizeClass(int size) {
+		if (size <= MIN_SIZE) return 0;
+		if (size > MAX_SIZE) return -1;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	private static final class Stack {
+		private final ByteBuffer[] buf;
+		private int size;
+
+		Stack(int capacity) {
+			buf = new ByteBuffer[capacity];
+		}
+
+		ByteBuffer pop() {
+			if (size == 0) return null;
+			ByteBuffer bb = buf[--size];
+			buf[size] = null;
+			return bb;
+		}
+
+		boolean push(ByteBuffer bb) {
+			if (size == buf.length) return false;
+			buf[size++] = bb;
+			return true;
+		}
+	}
+
+	/**
+	 * Reference counted pooled buffer. When used as a read supplier, the reference must be
+	 * retained before reading, because the channel releases the supplier on completion.
+	 */
+	public static final class Ref implements ByteBufferSupplier, ByteBufferArraySupplier {
+		private static final AtomicIntegerFieldUpdater<Ref> REFS =
+				AtomicIntegerFieldUpdater.newUpdater(Ref.class, "refs");
+		private ByteBuffer buf;
+		private ByteBuffer[] array;
+		@Keep
+		@SuppressWarnings("unused")
+		private volatile int refs = 1;
+
+		Ref(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@NonNull
+		public ByteBuffer getBuffer() {
+			ByteBuffer bb = buf;
+			if (bb == null) throw new IllegalStateException("Buffer released");
+			return bb;
+		}
+
+		public int refCount() {
+			return refs;
+		}
+
+		public Ref retain() {
+			for (int r = refs; ; r = refs) {
+				if (r <= 0) throw new IllegalStateException("Buffer released");
+				if (!REFS.compareAndSet(this, r, r + 1)) continue;
+				BufferLeakDetector.touch(buf);
+				return this;
+			}
+		}
+
+		@Override
+		public void release() {
+			int r = REFS.decrementAndGet(this);
+
+			if (r == 0) {
+				ByteBuffer bb = buf;
+				buf = null;
+				array = null;
+				ByteBufferPool.release(bb);
+			} else if (r < 0) {
+				throw new IllegalStateException("Buffer released");
+			}
+		}
+
+		@Override
+		public ByteBuffer getByteBuffer() {
+			return getBuffer();
+		}
+
+		@Override
+		public ByteBufferSupplier retainByteBuffer(ByteBuffer bb) {
+			assert bb == buf;
+			return this;
+		}
+
+		@Override
+		public ByteBuffer[] getByteBufferArray() {
+			ByteBuffer[] a = array;
+			if (a == null) array = a = new ByteBuffer[1];
+			a[0] = getBuffer();
+			return a;
+		}
+
+		@Override
+		public ByteBufferArraySupplier retainByteBufferArray(ByteBuffer[] bb, int fromIndex) {
+			assert (bb == array) && (fromIndex == 0);
+			return this;
+		}
+
+		@Override
+		public void releaseByteBufferArray(ByteBuffer[] bb, int toIndex) {
+			assert bb == array;
+		}
+
+		@Override
+		public ByteBufferArraySupplier asArray() {
+			return this;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "ByteBufferPool.Ref: refs=" + refs + ", buf=" + buf;
+		}
+	}
+}
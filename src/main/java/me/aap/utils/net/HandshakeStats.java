@@ -0,0 +1,126 @@
+package me.aap.utils.net;
+
+import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * SSL handshake statistics of a {@link NetHandler}. The handshake time is measured from the
+ * handshake start till completion, the task time - the time spent in the engine's delegated tasks.
+ *
+ * @author Andrey Pavlenko
+ */
+public final class HandshakeStats {
+	private static final AtomicLongFieldUpdater<HandshakeStats> COUNT =
+			AtomicLongFieldUpdater.newUpdater(HandshakeStats.class, "count");
+	private static final AtomicLongFieldUpdater<HandshakeStats> FAILED =
+			AtomicLongFieldUpdater.newUpdater(HandshakeStats.class, "failed");
+	private static final AtomicLongFieldUpdater<HandshakeStats> TOTAL =
+			AtomicLongFieldUpdater.newUpdater(HandshakeStats.class, "totalTime");
+	private static final AtomicLongFieldUpdater<HandshakeStats> MAX =
+			AtomicLongFieldUpdater.newUpdater(HandshakeStats.class, "maxTime");
+	private static final AtomicLongFieldUpdater<HandshakeStats> TASK =
+			AtomicLongFieldUpdater.newUpdater(HandshakeStats.class, "taskTime");
+	private static final AtomicLongFieldUpdater<HandshakeStats> SESSION_HITS =
+			AtomicLongFieldUpdater.newUpdater(HandshakeStats.class, "sessionHits");
+	private static final AtomicLongFieldUpdater<HandshakeStats> SESSION_MISSES =
+			AtomicLongFieldUpdater.newUpdater(HandshakeStats.class, "sessionMisses");
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile long count;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile long failed;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile long totalTime;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile long maxTime;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile long taskTime;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile long sessionHits;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile long sessionMisses;
+
+	HandshakeStats() {
+	}
+
+	/**
+	 * Returns the number of successfully completed handshakes.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public long getFailedCount() {
+		return failed;
+	}
+
+	public long getTotalTimeNanos() {
+		return totalTime;
+	}
+
+	public long getMaxTimeNanos() {
+		return maxTime;
+	}
+
+	public long getAverageTimeNanos() {
+		long c = count;
+		return (c == 0) ? 0 : totalTime / c;
+	}
+
+	public long getTaskTimeNanos() {
+		return taskTime;
+	}
+
+	/**
+	 * Returns the number of the client handshakes, that resumed a cached session.
+	 */
+	public long getSessionHits() {
+		return sessionHits;
+	}
+
+	/**
+	 * Returns the number of the client handshakes, that created a new session.
+	 */
+	public long getSessionMisses() {
+		return sessionMisses;
+	}
+
+	void sessionResumed(boolean resumed) {
+		if (resumed) SESSION_HITS.incrementAndGet(this);
+		else SESSION_MISSES.incrementAndGet(this);
+	}
+
+	void completed(long nanos) {
+		COUNT.incrementAndGet(this);
+		TOTAL.addAndGet(this, nanos);
+
+		for (long max = maxTime; nanos > max; max = maxTime) {
+			if (MAX.compareAndSet(this, max, nanos)) break;
+		}
+	}
+
+	void failed() {
+		FAILED.incrementAndGet(this);
+	}
+
+	void taskCompleted(long nanos) {
+		TASK.addAndGet(this, nanos);
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return "HandshakeStats{count=" + count + ", failed=" + failed +
+				", avgMs=" + getAverageTimeNanos() / 1000000 + ", maxMs=" + maxTime / 1000000 +
+				", taskMs=" + taskTime / 1000000 + ", sessionHits=" + sessionHits +
+				", sessionMisses=" + sessionMisses + '}';
+	}
+}
@@ -0,0 +1,654 @@
+package me.aap.utils.net;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.async.Promise;
+import me.aap.utils.function.Cancellable;
+import me.aap.utils.function.ProgressiveResultConsumer.Completion;
+import me.aap.utils.function.Supplier;
+import me.aap.utils.log.Log;
+import me.aap.utils.net.NetServer.ConnectionHandler;
+import me.aap.utils.security.SecurityUtils;
+
+import static java.util.Objects.requireNonNull;
+import static me.aap.utils.async.Completed.completed;
+import static me.aap.utils.async.Completed.completedVoid;
+import static me.aap.utils.async.Completed.failed;
+
+/**
+ * In-process transport. The channels are connected through in-memory ring buffers, only the
+ * servers bound to the same handler are reachable. Each direction of a connection has its own
+ * ring, a write completes when all its bytes are copied to the ring or directly to the peer's
+ * pending read.
+ *
+ * @author Andrey Pavlenko
+ */
+class LoopbackHandler implements NetHandler {
+	private static final int BUFFER_SIZE = 65536;
+	private static final int FIRST_PORT = 49152;
+	private final Executor executor;
+	private final ScheduledExecutorService scheduler;
+	private final ConcurrentHashMap<Integer, LoopbackServer> servers = new ConcurrentHashMap<>();
+	private final Set<LoopbackChannel> channels = Collections.newSetFromMap(new ConcurrentHashMap<>());
+	private final AtomicInteger nextPort = new AtomicInteger(FIRST_PORT);
+	private final HandshakeStats handshakeStats = new HandshakeStats();
+	private volatile boolean open = true;
+
+	LoopbackHandler(Opts opts) {
+		executor = opts.getExecutor();
+		scheduler = opts.getScheduler();
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	@Override
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	@Override
+	public int getInactivityTimeout() {
+		return 0;
+	}
+
+	@Override
+	public HandshakeStats getHandshakeStats() {
+		return handshakeStats;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+
+		for (LoopbackServer s : servers.values()) {
+			s.close();
+		}
+
+		for (LoopbackChannel c : channels) {
+			c.close();
+		}
+	}
+
+	@Override
+	public FutureSupplier<NetServer> bind(BindOpts opts) {
+		if (!open) return failed(SelectorHandler.ChannelClosed.get());
+
+		int port = opts.port;
+		SocketAddress addr = opts.address;
+		if (addr instanceof InetSocketAddress) port = ((InetSocketAddress) addr).getPort();
+
+		if (port == 0) {
+			for (; ; ) {
+				port = nextPort.getAndIncrement();
+
+				if (port > 65535) {
+					nextPort.compareAndSet(port + 1, FIRST_PORT);
+					continue;
+				}
+
+				LoopbackServer s = new LoopbackServer(port, opts);
+				if (servers.putIfAbsent(port, s) == null) return completed(s);
+			}
+		}
+
+		LoopbackServer s = new LoopbackServer(port, opts);
+		if (servers.putIfAbsent(port, s) == null) return completed(s);
+		return failed(new BindException("Address already in use: " + port));
+	}
+
+	@Override
+	public FutureSupplier<NetChannel> connect(ConnectOpts o) {
+		if (!open) return failed(SelectorHandler.ChannelClosed.get());
+
+		int port = o.port;
+		SocketAddress addr = o.address;
+		if (addr instanceof InetSocketAddress) port = ((InetSocketAddress) addr).getPort();
+
+		LoopbackServer server = servers.get(port);
+		if (server == null) return failed(new ConnectException("Connection refused: " + port));
+
+		Pipe c2s = new Pipe();
+		Pipe s2c = new Pipe();
+		LoopbackChannel client = new LoopbackChannel(c2s, s2c, o, server.getPort());
+		LoopbackChannel accepted = new LoopbackChannel(s2c, c2s, server.opts, server.getPort());
+		channels.add(client);
+		channels.add(accepted);
+		server.accept(accepted);
+
+		if (!o.ssl) return completed(client);
+
+		int serverPort = port;
+		Promise<NetChannel> p = new Promise<>();
+		executor.execute(() -> {
+			try {
+				String host = (o.host != null) ? o.host : "localhost";
+				SSLEngine engine = (o.sslEngine != null) ? o.sslEngine.apply(host, serverPort)
+						: SecurityUtils.createClientSslEngine(host, serverPort);
+				SslChannel.create(client, engine, o.handshakeExecutor).onCompletionSupply(p);
+			} catch (Throwable ex) {
+				client.close();
+				p.completeExceptionally(ex);
+			}
+		});
+		return p;
+	}
+
+	@Nullable
+	static WriteWatermark getWatermark(NetChannel ch) {
+		return (ch instanceof LoopbackChannel) ? ((LoopbackChannel) ch).watermark : null;
+	}
+
+	private final class LoopbackServer implements NetServer {
+		final int port;
+		final BindOpts opts;
+		private final ConnectionHandler handler;
+		private final Supplier<SSLEngine> ssl;
+
+		LoopbackServer(int port, BindOpts opts) {
+			this.port = port;
+			this.opts = opts;
+			handler = requireNonNull(opts.handler);
+
+			if (opts.ssl) {
+				ssl = (opts.sslEngine != null) ? opts.sslEngine : SecurityUtils::createServerSslEngine;
+			} else {
+				ssl = null;
+			}
+		}
+
+		void accept(LoopbackChannel ch) {
+			executor.execute(() -> {
+				if (ssl != null) {
+					SslChannel.create(ch, ssl.get(), opts.handshakeExecutor).onCompletion((sslc, err) -> {
+						if (err != null) {
+							Log.e(err, "Failed to create SSL channel");
+							ch.close();
+						} else {
+							acceptConnection(sslc);
+						}
+					});
+				} else {
+					acceptConnection(ch);
+				}
+			});
+		}
+
+		private void acceptConnection(NetChannel channel) {
+			try {
+				handler.acceptConnection(channel);
+			} catch (Throwable ex) {
+				Log.e(ex, "Connection handler failed");
+				channel.close();
+			}
+		}
+
+		@Override
+		public NetHandler getHandler() {
+			return LoopbackHandler.this;
+		}
+
+		@Override
+		public int getPort() {
+			return port;
+		}
+
+		@Override
+		public SocketAddress getBindAddress() {
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return servers.get(port) == this;
+		}
+
+		@Override
+		public void close() {
+			servers.remove(port, this);
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "LoopbackServer: " + port;
+		}
+	}
+
+	private final class LoopbackChannel implements NetChannel {
+		private final Pipe in;
+		private final Pipe out;
+		private final int port;
+		private final int readTimeout;
+		private final int writeTimeout;
+		@Nullable
+		private final WriteWatermark watermark;
+		private volatile boolean open = true;
+		private CloseListener closeListener;
+
+		LoopbackChannel(Pipe in, Pipe out, ChannelOpts o, int port) {
+			this.in = in;
+			this.out = out;
+			this.port = port;
+			readTimeout = o.readTimeout;
+			writeTimeout = o.writeTimeout;
+			watermark = WriteWatermark.create(o.writeHighWatermark, o.writeLowWatermark);
+		}
+
+		@Override
+		public NetHandler getHandler() {
+			return LoopbackHandler.this;
+		}
+
+		@Override
+		public FutureSupplier<ByteBuffer> read(ByteBufferSupplier supplier, @Nullable Completion<ByteBuffer> consumer) {
+			Read r = new Read(supplier);
+			if (consumer != null) r.onCompletion(consumer);
+
+			synchronized (in) {
+				if (in.closed != null) {
+					r.completeExceptionally(in.closed);
+					return r;
+				} else if ((in.reader != null) && !in.reader.isDone()) {
+					r.completeExceptionally(new IOException("Read pending"));
+					return r;
+				}
+
+				in.reader = r;
+				in.pump();
+			}
+
+			startTimer(r, readTimeout, "Read timeout");
+			return r;
+		}
+
+		@Override
+		public FutureSupplier<Void> write(ByteBufferArraySupplier supplier, @Nullable Completion<Void> consumer) {
+			return write(supplier, consumer, -1);
+		}
+
+		@Override
+		public FutureSupplier<Void> write(ByteBuffer... buf) {
+			if (watermark == null) return write(() -> buf, null, -1);
+
+			long size = 0;
+			for (ByteBuffer b : buf) {
+				size += b.remaining();
+			}
+
+			return write(() -> buf, null, size);
+		}
+
+		private FutureSupplier<Void> write(ByteBufferArraySupplier supplier, @Nullable Completion<Void> consumer,
+																			 long size) {
+			if (!open) return failed(SelectorHandler.ChannelClosed.get());
+
+			Write w = new Write(supplier, watermark);
+			if (consumer != null) w.onCompletion(consumer);
+
+			synchronized (out) {
+				if (out.closed != null) {
+					w.completeExceptionally(out.closed);
+					return w;
+				}
+
+				if (size >= 0) w.account(size);
+				out.writers.add(w);
+				out.pump();
+			}
+
+			startTimer(w, writeTimeout, "Write timeout");
+			return w;
+		}
+
+		@Override
+		public void cork() {
+			synchronized (out) {
+				out.corked = true;
+			}
+		}
+
+		@Override
+		public void flush() {
+			synchronized (out) {
+				out.corked = false;
+				out.pump();
+			}
+		}
+
+		@Override
+		public boolean isWritable() {
+			return (watermark == null) || watermark.isWritable();
+		}
+
+		@Override
+		public FutureSupplier<Void> whenWritable() {
+			return (watermark == null) ? completedVoid() : watermark.whenWritable();
+		}
+
+		@Override
+		public void suspendRead() {
+			synchronized (in) {
+				in.suspended = true;
+			}
+		}
+
+		@Override
+		public void resumeRead() {
+			synchronized (in) {
+				in.suspended = false;
+				in.pump();
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			if (!open) return;
+			open = false;
+			channels.remove(this);
+			Throwable err = SelectorHandler.ChannelClosed.get();
+
+			synchronized (out) {
+				// The peer reads the remaining bytes, then the end of stream
+				out.eos = true;
+				out.failWriters(err);
+				out.pump();
+			}
+
+			synchronized (in) {
+				in.closed = err;
+				in.failWriters(err);
+				Read r = in.reader;
+				in.reader = null;
+				if (r != null) executor.execute(() -> r.completeExceptionally(err));
+			}
+
+			if (watermark != null) watermark.close(err);
+			CloseListener listener = closeListener;
+			if (listener != null) listener.channelClosed(this);
+		}
+
+		@Override
+		public void setCloseListener(CloseListener listener) {
+			closeListener = listener;
+		}
+
+		private void startTimer(Promise<?> p, int timeout, String msg) {
+			if ((timeout <= 0) || p.isDone()) return;
+			Cancellable c = schedule(() -> {
+				if (p.completeExceptionally(new TimeoutException(msg))) {
+					// Drop the timed out promise from the pipe
+					Pipe pipe = (p instanceof Read) ? in : out;
+					synchronized (pipe) {
+						pipe.pump();
+					}
+				}
+			}, timeout, TimeUnit.SECONDS);
+			p.thenRun(c::cancel);
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "LoopbackChannel: " + port;
+		}
+	}
+
+	/**
+	 * One direction of a connection. All the fields are guarded by the pipe's monitor.
+	 */
+	private final class Pipe {
+		private final byte[] buf = new byte[BUFFER_SIZE];
+		private final ArrayDeque<Write> writers = new ArrayDeque<>();
+		private int head;
+		private int size;
+		private Read reader;
+		// The writing side is closed
+		private boolean eos;
+		// The reading side is closed
+		private Throwable closed;
+		private boolean corked;
+		private boolean suspended;
+
+		void pump() {
+			if ((reader != null) && reader.isDone()) reader = null;
+			Read r = reader;
+
+			if (r != null) {
+				if (r.scheduled) return;
+
+				if (!suspended && ((size != 0) || !writers.isEmpty() || eos)) {
+					// The read buffer may be thread local, fill it in the thread, completing the read
+					r.scheduled = true;
+					executor.execute(() -> deliver(r));
+					return;
+				}
+			}
+
+			if (!corked && (size < buf.length)) drainWriters(null);
+		}
+
+		private void deliver(Read r) {
+			ByteBuffer dst;
+
+			synchronized (this) {
+				ByteBufferSupplier s = r.supplier;
+				r.scheduled = false;
+
+				if ((reader != r) || (s == null) || suspended) {
+					pump();
+					return;
+				}
+
+				dst = s.getByteBuffer();
+				int pos = dst.position();
+				boolean full = !dst.hasRemaining();
+				readTo(dst);
+				if (!corked && dst.hasRemaining()) drainWriters(dst);
+
+				if ((dst.position() != pos) || full) {
+					reader = null;
+					dst.flip();
+				} else if (eos && (size == 0) && writers.isEmpty()) {
+					reader = null;
+					dst.limit(dst.position()); // End of stream
+				} else {
+					s.releaseByteBuffer(dst);
+					dst = null;
+				}
+
+				pump();
+			}
+
+			if (dst != null) r.complete(dst);
+		}
+
+		void failWriters(Throwable err) {
+			for (Write next = writers.poll(); next != null; next = writers.poll()) {
+				Write w = next;
+				w.release();
+				executor.execute(() -> w.completeExceptionally(err));
+			}
+		}
+
+		// Copy the writers' buffers to dst or, if null, to the ring
+		private void drainWriters(@Nullable ByteBuffer dst) {
+			for (Write next = writers.peek(); next != null; next = writers.peek()) {
+				Write w = next;
+
+				if (w.isDone()) {
+					writers.poll();
+					w.release();
+					continue;
+				}
+
+				ByteBuffer[] bufs = w.supplier.getByteBufferArray();
+				if (w.size < 0) w.account(bufs);
+				int off = 0;
+
+				for (; off < bufs.length; off++) {
+					ByteBuffer b = bufs[off];
+					if (dst != null) copy(b, dst);
+					else writeTo(b);
+					if (b.hasRemaining()) break;
+				}
+
+				if (off == bufs.length) {
+					writers.poll();
+					if (bufs.length != 0) w.supplier.releaseByteBufferArray(bufs);
+					w.release();
+					executor.execute(() -> w.complete(null));
+				} else {
+					if (off != 0) w.supplier.releaseByteBufferArray(bufs, off);
+					w.supplier = w.supplier.retainByteBufferArray(bufs, off);
+					return;
+				}
+			}
+		}
+
+		private void readTo(ByteBuffer dst) {
+			int n = Math.min(dst.remaining(), size);
+			if (n == 0) return;
+			int first = Math.min(n, buf.length - head);
+			dst.put(buf, head, first);
+			if (first < n) dst.put(buf, 0, n - first);
+			head = (head + n) & (buf.length - 1);
+			size -= n;
+		}
+
+		private void writeTo(ByteBuffer src) {
+			int n = Math.min(src.remaining(), buf.length - size);
+			if (n == 0) return;
+			int tail = (head + size) & (buf.length - 1);
+			int first = Math.min(n, buf.length - tail);
+			src.get(buf, tail, first);
+			if (first < n) src.get(buf, 0, n - first);
+			size += n;
+		}
+
+		private void copy(ByteBuffer src, ByteBuffer dst) {
+			int n = Math.min(src.remaining(), dst.remaining());
+			if (n == 0) return;
+
+			if (n == src.remaining()) {
+				dst.put(src);
+			} else {
+				int lim = src.limit();
+				src.limit(src.position() + n);
+				dst.put(src);
+				src.limit(lim);
+			}
+		}
+	}
+
+	private static final class Read extends Promise<ByteBuffer> {
+		ByteBufferSupplier supplier;
+		// Guarded by the pipe's monitor
+		boolean scheduled;
+
+		Read(ByteBufferSupplier supplier) {
+			this.supplier = supplier;
+		}
+
+		void release() {
+			ByteBufferSupplier s = supplier;
+
+			if (s != null) {
+				supplier = null;
+				s.release();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			release();
+			return super.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		public boolean complete(@Nullable ByteBuffer value) {
+			release();
+			return super.complete(value);
+		}
+
+		@Override
+		public boolean completeExceptionally(@NonNull Throwable ex) {
+			release();
+			return super.completeExceptionally(ex);
+		}
+	}
+
+	private static final class Write extends Promise<Void> {
+		@Nullable
+		private final WriteWatermark watermark;
+		ByteBufferArraySupplier supplier;
+		long size = -1;
+
+		Write(ByteBufferArraySupplier supplier, @Nullable WriteWatermark watermark) {
+			this.supplier = supplier;
+			this.watermark = watermark;
+		}
+
+		void account(ByteBuffer[] bufs) {
+			if (watermark == null) {
+				size = 0;
+				return;
+			}
+
+			long size = 0;
+			for (ByteBuffer b : bufs) {
+				size += b.remaining();
+			}
+			account(size);
+		}
+
+		void account(long size) {
+			this.size = size;
+			if ((watermark != null) && (size > 0)) watermark.add(size);
+		}
+
+		// Called under the pipe's lock, when the write is removed from the queue
+		void release() {
+			ByteBufferArraySupplier s = supplier;
+
+			if (s != null) {
+				supplier = null;
+				s.release();
+				if ((watermark != null) && (size > 0)) watermark.remove(size);
+			}
+		}
+	}
+}
@@ -12,6 +12,7 @@ import me.aap.utils.function.ProgressiveResultConsumer.Completion;
 import me.aap.utils.holder.Holder;
 import me.aap.utils.io.RandomAccessChannel;
 
+import static me.aap.utils.async.Completed.completedVoid;
 import static me.aap.utils.async.Completed.failed;
 
 /**
@@ -48,6 +49,41 @@ public interface NetChannel extends Closeable {
 		return read(() -> ByteBuffer.allocate(4096), consumer);
 	}
 
+	/**
+	 * Read into multiple buffers with a single scattering read. On completion, the buffers are
+	 * flipped, i.e. each buffer contains the bytes read into it, the buffers following the last
+	 * filled one are empty. On the end of stream, all the buffers are empty.
+	 * <p>
+	 * The default implementation reads into the first buffer only.
+	 */
+	default FutureSupplier<ByteBuffer[]> scatterRead(ByteBufferArraySupplier supplier,
+																									 @Nullable Completion<ByteBuffer[]> consumer) {
+		ByteBuffer[] buf = supplier.getByteBufferArray();
+		FutureSupplier<ByteBuffer[]> f = read(new ByteBufferSupplier() {
+			@Override
+			public ByteBuffer getByteBuffer() {
+				return buf[0];
+			}
+
+			@Override
+			public void release() {
+				supplier.release();
+			}
+		}).map(bb -> {
+			for (int i = 1; i < buf.length; i++) {
+				buf[i].limit(buf[i].position());
+			}
+			return buf;
+		});
+
+		if (consumer != null) f.onCompletion(consumer);
+		return f;
+	}
+
+	default FutureSupplier<ByteBuffer[]> scatterRead(ByteBuffer... buf) {
+		return scatterRead(() -> buf, null);
+	}
+
 	FutureSupplier<Void> write(ByteBufferArraySupplier supplier, @Nullable Completion<Void> consumer);
 
 	default FutureSupplier<Void> write(ByteBufferArraySupplier supplier) {
@@ -116,8 +152,53 @@ public interface NetChannel extends Closeable {
 		return f;
 	}
 
+	/**
+	 * Hold the subsequent writes in the queue until {@link #flush()} is called. The queued writes
+	 * are then sent with as few system calls as possible.
+	 */
+	default void cork() {
+	}
+
+	/**
+	 * Send the writes held by {@link #cork()}.
+	 */
+	default void flush() {
+	}
+
+	/**
+	 * Returns false if the size of the queued writes has exceeded the high watermark.
+	 */
+	default boolean isWritable() {
+		return true;
+	}
+
+	/**
+	 * Returns a future, that completes when the size of the queued writes drops to the
+	 * low watermark.
+	 */
+	default FutureSupplier<Void> whenWritable() {
+		return completedVoid();
+	}
+
+	/**
+	 * Stop reading from the socket. The pending read is not completed until {@link #resumeRead()}.
+	 */
+	default void suspendRead() {
+	}
+
+	default void resumeRead() {
+	}
+
 	boolean isOpen();
 
+	/**
+	 * Returns the I/O metrics of this channel or null if the metrics are disabled.
+	 */
+	@Nullable
+	default NetMetrics getMetrics() {
+		return null;
+	}
+
 	@Override
 	void close();
 
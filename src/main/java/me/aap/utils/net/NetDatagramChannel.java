@@ -0,0 +1,41 @@
+package me.aap.utils.net;
+
+import java.io.Closeable;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import me.aap.utils.async.FutureSupplier;
+
+/**
+ * A non-blocking UDP channel, registered with a {@link NetHandler}.
+ *
+ * @author Andrey Pavlenko
+ */
+public interface NetDatagramChannel extends Closeable {
+
+	NetHandler getHandler();
+
+	int getPort();
+
+	SocketAddress getBindAddress();
+
+	/**
+	 * Send the datagram. The buffer's content is copied if the datagram can not be sent
+	 * immediately, thus the same buffer may be shared between concurrent sends.
+	 */
+	FutureSupplier<Void> send(ByteBuffer data, SocketAddress target);
+
+	boolean isOpen();
+
+	@Override
+	void close();
+
+	interface DatagramHandler {
+
+		/**
+		 * Called by the selector thread for each received datagram and must not block.
+		 * The buffer is only valid during the call.
+		 */
+		void receive(NetDatagramChannel channel, ByteBuffer data, SocketAddress from);
+	}
+}
@@ -1,7 +1,10 @@
 package me.aap.utils.net;
 
+import androidx.annotation.Nullable;
+
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketOption;
@@ -10,16 +13,22 @@ import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLEngine;
 
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.concurrent.NetThreadPool;
 import me.aap.utils.function.BiFunction;
+import me.aap.utils.function.Cancellable;
 import me.aap.utils.function.Consumer;
 import me.aap.utils.function.Supplier;
+import me.aap.utils.net.NetDatagramChannel.DatagramHandler;
 import me.aap.utils.net.NetServer.ConnectionHandler;
 
+import static me.aap.utils.async.Completed.failed;
+
 /**
  * @author Andrey Pavlenko
  */
@@ -32,7 +41,7 @@ public interface NetHandler extends Closeable {
 	}
 
 	static NetHandler create(Opts opts) throws IOException {
-		return new SelectorHandler(opts);
+		return opts.loopback ? new LoopbackHandler(opts) : new SelectorHandler(opts);
 	}
 
 	Executor getExecutor();
@@ -41,6 +50,55 @@ public interface NetHandler extends Closeable {
 
 	int getInactivityTimeout();
 
+	/**
+	 * Returns the number of channels closed due to inactivity.
+	 */
+	default long getInactiveClosedCount() {
+		return 0;
+	}
+
+	/**
+	 * Returns the number of the selector wakeups, issued to run the tasks, submitted by other threads.
+	 */
+	default long getWakeupCount() {
+		return 0;
+	}
+
+	/**
+	 * Returns the number of the wakeups, that have been suppressed, because the selector was
+	 * already awake or a wakeup was pending.
+	 */
+	default long getSuppressedWakeupCount() {
+		return 0;
+	}
+
+	/**
+	 * Returns the I/O metrics of all the channels, created by this handler, or null if the metrics
+	 * are disabled.
+	 */
+	@Nullable
+	default NetMetrics getMetrics() {
+		return null;
+	}
+
+	/**
+	 * Returns the SSL handshake statistics of the channels, created by this handler. The default
+	 * implementation does not collect the statistics and returns empty ones.
+	 */
+	default HandshakeStats getHandshakeStats() {
+		return new HandshakeStats();
+	}
+
+	/**
+	 * Schedule the task to be run by the handler's executor after the specified delay. Unlike
+	 * {@link #getScheduler()}, the tasks are kept in a coarse-grained timer, that is cheap to
+	 * schedule and cancel, but the task may be delayed by up to 100 milliseconds.
+	 */
+	default Cancellable schedule(Runnable task, long delay, TimeUnit unit) {
+		ScheduledFuture<?> f = getScheduler().schedule(task, delay, unit);
+		return () -> f.cancel(false);
+	}
+
 	boolean isOpen();
 
 	@Override
@@ -56,6 +114,16 @@ public interface NetHandler extends Closeable {
 
 	FutureSupplier<NetChannel> connect(ConnectOpts opts);
 
+	default FutureSupplier<NetDatagramChannel> bindDatagram(DatagramOpts opts) {
+		return failed(new UnsupportedOperationException("Datagram channels are not supported by " + this));
+	}
+
+	default FutureSupplier<NetDatagramChannel> bindDatagram(Consumer<DatagramOpts> c) {
+		DatagramOpts o = new DatagramOpts();
+		c.accept(o);
+		return bindDatagram(o);
+	}
+
 	default FutureSupplier<NetChannel> connect(Consumer<ConnectOpts> c) {
 		ConnectOpts o = new ConnectOpts();
 		c.accept(o);
@@ -66,6 +134,17 @@ public interface NetHandler extends Closeable {
 		public Executor executor;
 		public ScheduledExecutorService scheduler;
 		public int inactivityTimeout;
+		// The number of selector threads. The connections are distributed between the threads
+		public int selectorThreads = 1;
+		// Connect the channels through in-memory buffers. Only the servers bound to the same handler
+		// are reachable
+		public boolean loopback;
+		// The percentage of the selector thread's time, spent on the I/O. The queued tasks are run
+		// for up to ioTime * (100 - ioRatio) / ioRatio, the remaining tasks are run in the next cycle.
+		// 100 - run all the queued tasks
+		public int ioRatio = 50;
+		// Collect the I/O metrics of the handler, servers and channels
+		public boolean metrics;
 
 		Executor getExecutor() {
 			return (executor == null) ? executor = new NetThreadPool(Runtime.getRuntime().availableProcessors()) : executor;
@@ -85,6 +164,27 @@ public interface NetHandler extends Closeable {
 		public int readTimeout;
 		public int writeTimeout;
 		public int sendTimeout;
+		// Gather the queued writes into a single write of up to the specified number of bytes. 0 - disabled
+		public int writeBatchSize;
+		// The maximum number of buffers in a gathering write
+		public int writeBatchBuffers = 64;
+		// When the size of the queued writes reaches the high watermark, the channel becomes
+		// not writable until the size drops to the low watermark. 0 - disabled
+		public long writeHighWatermark;
+		// Defaults to the half of the high watermark
+		public long writeLowWatermark;
+		// Runs the SSL engine's delegated tasks. Defaults to the handler's executor
+		public Executor handshakeExecutor;
+		// Run the I/O and notify the consumers in the selector thread, instead of the executor.
+		// The consumers must not block, the long running callbacks are logged.
+		public boolean inline;
+		// Limit the write rate of the channel, bytes per second. 0 - unlimited
+		public long writeRateLimit;
+		// The maximum burst size of the rate limited writes. Defaults to the quarter of the rate
+		public long writeRateBurst;
+		// Write up to the specified number of bytes per cycle, then yield to the other channels,
+		// ready for writing, in a round-robin order. 0 - write until the socket buffer is full
+		public int writeQuantum;
 
 		SocketAddress getAddress() {
 			if (address == null) {
@@ -99,6 +199,38 @@ public interface NetHandler extends Closeable {
 		public ConnectionHandler handler;
 		public int backlog;
 		public Supplier<SSLEngine> sslEngine;
+		// The maximum number of connections accepted per selection
+		public int acceptBatch = 16;
+		// The number of listening channels, bound to the same port with SO_REUSEPORT and
+		// distributed between the selector threads. Ignored if SO_REUSEPORT is not supported
+		public int acceptors = 1;
+		// Stop accepting, when the number of open connections reaches the limit. 0 - unlimited
+		public int maxConnections;
+		// Limit the total write rate of the accepted channels, bytes per second. 0 - unlimited
+		public long serverWriteRateLimit;
+		public long serverWriteRateBurst;
+	}
+
+	class DatagramOpts {
+		public Map<SocketOption<?>, Object> opt = new HashMap<>();
+		public SocketAddress address;
+		public String host;
+		public int port;
+		// Join the multicast group on all the multicast capable interfaces. Requires Android 7.0
+		public InetAddress multicastGroup;
+		public DatagramHandler handler;
+		// The maximum number of datagrams received or sent per selection
+		public int batchSize = 16;
+		// The larger datagrams are truncated
+		public int maxDatagramSize = 8192;
+
+		SocketAddress getAddress() {
+			if (address == null) {
+				return (host == null) ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+			} else {
+				return address;
+			}
+		}
 	}
 
 	class ConnectOpts extends ChannelOpts {
@@ -0,0 +1,214 @@
+package me.aap.utils.net;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import me.aap.utils.concurrent.StripedCounter;
+
+/**
+ * I/O counters of a {@link NetHandler}, {@link NetServer} or {@link NetChannel}. The counters of
+ * a channel are added to the counters of its server, if the channel has been accepted by a server,
+ * and to the counters of the handler. The bytes are counted as sent over the network, i.e. for an
+ * SSL channel - the encrypted bytes.
+ * <p>
+ * The metrics are collected only if enabled by {@link NetHandler.Opts#metrics}.
+ *
+ * @author Andrey Pavlenko
+ */
+public final class NetMetrics {
+	@Nullable
+	private final NetMetrics parent;
+	private final StripedCounter bytesIn = new StripedCounter();
+	private final StripedCounter bytesOut = new StripedCounter();
+	private final StripedCounter reads = new StripedCounter();
+	private final StripedCounter writes = new StripedCounter();
+	private final StripedCounter queued = new StripedCounter();
+	private final StripedCounter timeouts = new StripedCounter();
+	@Nullable
+	private final StripedCounter accepted;
+	@Nullable
+	private final StripedCounter selects;
+	@Nullable
+	private final StripedCounter selectTime;
+
+	private NetMetrics(@Nullable NetMetrics parent, boolean server, boolean handler) {
+		this.parent = parent;
+		accepted = server ? new StripedCounter() : null;
+		selects = handler ? new StripedCounter() : null;
+		selectTime = handler ? new StripedCounter() : null;
+	}
+
+	static NetMetrics createHandlerMetrics() {
+		return new NetMetrics(null, true, true);
+	}
+
+	NetMetrics createServerMetrics() {
+		return new NetMetrics(this, true, false);
+	}
+
+	NetMetrics createChannelMetrics() {
+		return new NetMetrics(this, false, false);
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/**
+	 * Returns the number of the read system calls.
+	 */
+	public long getReadCount() {
+		return reads.sum();
+	}
+
+	/**
+	 * Returns the number of the write system calls.
+	 */
+	public long getWriteCount() {
+		return writes.sum();
+	}
+
+	/**
+	 * Returns the number of the writes, queued but not yet completed.
+	 */
+	public long getQueueDepth() {
+		return queued.sum();
+	}
+
+	public long getTimeoutCount() {
+		return timeouts.sum();
+	}
+
+	public long getAcceptedCount() {
+		return (accepted == null) ? 0 : accepted.sum();
+	}
+
+	/**
+	 * Returns the number of the select loop iterations.
+	 */
+	public long getSelectCount() {
+		return (selects == null) ? 0 : selects.sum();
+	}
+
+	/**
+	 * Returns the time, spent by the select loops on processing the selected keys and the queued
+	 * tasks. The time, spent blocked in select, is not included.
+	 */
+	public long getSelectTimeNanos() {
+		return (selectTime == null) ? 0 : selectTime.sum();
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	void read(long bytes) {
+		for (NetMetrics m = this; m != null; m = m.parent) {
+			m.reads.increment();
+			if (bytes > 0) m.bytesIn.add(bytes);
+		}
+	}
+
+	void written(long bytes) {
+		for (NetMetrics m = this; m != null; m = m.parent) {
+			m.writes.increment();
+			if (bytes > 0) m.bytesOut.add(bytes);
+		}
+	}
+
+	void queued(int delta) {
+		for (NetMetrics m = this; m != null; m = m.parent) {
+			m.queued.add(delta);
+		}
+	}
+
+	void timeout() {
+		for (NetMetrics m = this; m != null; m = m.parent) {
+			m.timeouts.increment();
+		}
+	}
+
+	void accepted() {
+		for (NetMetrics m = this; m != null; m = m.parent) {
+			if (m.accepted != null) m.accepted.increment();
+		}
+	}
+
+	void selected(long nanos) {
+		if (selects == null) return;
+		selects.increment();
+		selectTime.add(nanos);
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	/**
+	 * The values of the counters at the specified time. The rates are calculated between two
+	 * snapshots of the same metrics.
+	 */
+	public static final class Snapshot {
+		public final long time = System.currentTimeMillis();
+		public final long bytesIn;
+		public final long bytesOut;
+		public final long reads;
+		public final long writes;
+		public final long queueDepth;
+		public final long timeouts;
+		public final long accepted;
+		public final long selects;
+		public final long selectTimeNanos;
+
+		Snapshot(NetMetrics m) {
+			bytesIn = m.getBytesIn();
+			bytesOut = m.getBytesOut();
+			reads = m.getReadCount();
+			writes = m.getWriteCount();
+			queueDepth = m.getQueueDepth();
+			timeouts = m.getTimeoutCount();
+			accepted = m.getAcceptedCount();
+			selects = m.getSelectCount();
+			selectTimeNanos = m.getSelectTimeNanos();
+		}
+
+		/**
+		 * Returns the number of the accepted connections per second since the previous snapshot.
+		 */
+		public double getAcceptRate(Snapshot prev) {
+			return rate(prev, accepted - prev.accepted);
+		}
+
+		public double getBytesInRate(Snapshot prev) {
+			return rate(prev, bytesIn - prev.bytesIn);
+		}
+
+		public double getBytesOutRate(Snapshot prev) {
+			return rate(prev, bytesOut - prev.bytesOut);
+		}
+
+		public long getAverageSelectTimeNanos() {
+			return (selects == 0) ? 0 : selectTimeNanos / selects;
+		}
+
+		private double rate(Snapshot prev, long diff) {
+			long t = time - prev.time;
+			return (t <= 0) ? 0 : diff * 1000.0 / t;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "NetMetrics{bytesIn=" + bytesIn + ", bytesOut=" + bytesOut + ", reads=" + reads +
+					", writes=" + writes + ", queueDepth=" + queueDepth + ", timeouts=" + timeouts +
+					", accepted=" + accepted + ", selects=" + selects +
+					", avgSelectNanos=" + getAverageSelectTimeNanos() + '}';
+		}
+	}
+}
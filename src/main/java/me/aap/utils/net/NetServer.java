@@ -1,5 +1,7 @@
 package me.aap.utils.net;
 
+import androidx.annotation.Nullable;
+
 import java.io.Closeable;
 import java.net.SocketAddress;
 
@@ -16,6 +18,14 @@ public interface NetServer extends Closeable {
 
 	boolean isOpen();
 
+	/**
+	 * Returns the I/O metrics of the accepted channels or null if the metrics are disabled.
+	 */
+	@Nullable
+	default NetMetrics getMetrics() {
+		return null;
+	}
+
 	@Override
 	void close();
 
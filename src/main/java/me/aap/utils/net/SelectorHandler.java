@@ -8,16 +8,22 @@ import androidx.annotation.Nullable;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketAddress;
 import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -26,9 +32,10 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import javax.annotation.Nonnull;
@@ -42,7 +49,9 @@ import me.aap.utils.async.RunnablePromise;
 import me.aap.utils.concurrent.ConcurrentQueueBase;
 import me.aap.utils.concurrent.ConcurrentQueueBase.Node;
 import me.aap.utils.concurrent.ConcurrentUtils;
-import me.aap.utils.concurrent.PooledThread;
+import me.aap.utils.concurrent.NetThread;
+import me.aap.utils.concurrent.TimingWheel;
+import me.aap.utils.function.Cancellable;
 import me.aap.utils.function.ProgressiveResultConsumer.Completion;
 import me.aap.utils.function.Supplier;
 import me.aap.utils.io.IoUtils;
@@ -50,45 +59,80 @@ import me.aap.utils.io.RandomAccessChannel;
 import me.aap.utils.log.Log;
 import me.aap.utils.security.SecurityUtils;
 
+import static java.net.StandardProtocolFamily.INET;
+import static java.net.StandardProtocolFamily.INET6;
 import static java.nio.channels.SelectionKey.OP_ACCEPT;
 import static java.nio.channels.SelectionKey.OP_CONNECT;
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.channels.SelectionKey.OP_WRITE;
 import static java.util.Objects.requireNonNull;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
-import static java.util.concurrent.TimeUnit.SECONDS;
+import static me.aap.utils.async.Completed.completedVoid;
 import static me.aap.utils.async.Completed.failed;
+import static me.aap.utils.concurrent.NetThread.isSslWriteBuffer;
+import static me.aap.utils.concurrent.NetThread.isWriteBuffer;
+import static me.aap.utils.io.IoUtils.emptyByteBufferArray;
 import static me.aap.utils.misc.Assert.assertEquals;
 
 /**
  * @author Andrey Pavlenko
  */
-class SelectorHandler implements NetHandler, Runnable {
+class SelectorHandler implements NetHandler {
+	private static final AtomicIntegerFieldUpdater<SelectorHandler> NEXT_LOOP =
+			AtomicIntegerFieldUpdater.newUpdater(SelectorHandler.class, "nextLoop");
+	private static final AtomicIntegerFieldUpdater<SelectorLoop> WAKEUP =
+			AtomicIntegerFieldUpdater.newUpdater(SelectorLoop.class, "wakeup");
+	private static final AtomicLongFieldUpdater<SelectorLoop> WAKEUPS =
+			AtomicLongFieldUpdater.newUpdater(SelectorLoop.class, "wakeups");
+	private static final AtomicLongFieldUpdater<SelectorLoop> SUPPRESSED =
+			AtomicLongFieldUpdater.newUpdater(SelectorLoop.class, "suppressedWakeups");
+	private static final int DEFAULT_WRITE_BATCH_SIZE = 65536;
+	private static final int TIMER_TICK = 100;
+	private static final int TIMER_WHEEL_SIZE = 512;
+	// The deadline of the queued tasks is checked after each batch
+	private static final int TASK_BATCH = 16;
+	// Inline callbacks, running longer, are logged
+	private static final long INLINE_WARN_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	// Available since Java 9, not available on Android
+	@Nullable
+	private static final SocketOption<Boolean> SO_REUSEPORT = getReusePortOption();
+	private static final ByteBufferArraySupplier EMPTY_SUPPLIER = () -> emptyByteBufferArray();
 	private final Executor executor;
 	private final ScheduledExecutorService scheduler;
 	private final int inactivityTimeout;
-	private final Selector selector;
-	private final ScheduledFuture<?> inactiveChannelCleaner;
-	private final Thread selectorThread;
-	private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+	private final int ioRatio;
+	private final SelectorLoop[] loops;
+	private final HandshakeStats handshakeStats = new HandshakeStats();
+	@Nullable
+	private final NetMetrics metrics;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile int nextLoop;
 
 	SelectorHandler(Opts opts) throws IOException {
 		executor = opts.getExecutor();
 		scheduler = opts.getScheduler();
-		selector = Selector.open();
+		ioRatio = Math.max(1, Math.min(opts.ioRatio, 100));
+		metrics = opts.metrics ? NetMetrics.createHandlerMetrics() : null;
 
-		if (opts.inactivityTimeout > 0) {
-			inactivityTimeout = opts.inactivityTimeout * 1000;
-			inactiveChannelCleaner = scheduler.scheduleWithFixedDelay(this::cleanInactive,
-					inactivityTimeout, inactivityTimeout, MILLISECONDS);
-		} else {
-			inactivityTimeout = 0;
-			inactiveChannelCleaner = null;
+		int nloops = Math.max(1, opts.selectorThreads);
+		loops = new SelectorLoop[nloops];
+
+		try {
+			for (int i = 0; i < nloops; i++) {
+				loops[i] = new SelectorLoop((nloops == 1) ? "SelectorHandler" : "SelectorHandler-" + i);
+			}
+		} catch (IOException ex) {
+			for (SelectorLoop l : loops) {
+				if (l != null) IoUtils.close(l.selector);
+			}
+			throw ex;
 		}
 
-		selectorThread = new PooledThread(this, "SelectorHandler");
-		selectorThread.setDaemon(true);
-		selectorThread.start();
+		inactivityTimeout = Math.max(opts.inactivityTimeout, 0) * 1000;
+
+		for (SelectorLoop l : loops) {
+			l.start();
+		}
 	}
 
 	@Override
@@ -96,51 +140,22 @@ class SelectorHandler implements NetHandler, Runnable {
 		close();
 	}
 
-	@Override
-	public void run() {
-		while (selector.isOpen()) {
-			try {
-				selector.select();
-
-				for (Runnable run = queue.poll(); run != null; run = queue.poll()) {
-					run.run();
-				}
-
-				Set<SelectionKey> keys = selector.selectedKeys();
-
-				for (Iterator<SelectionKey> it = keys.iterator(); it.hasNext(); ) {
-					SelectionKey k = it.next();
-					it.remove();
-
-					if (k.isValid()) {
-						Selectable select = (Selectable) k.attachment();
-						if (select != null) select.select();
-					}
-				}
-			} catch (Throwable ex) {
-				if (!selector.isOpen()) break;
-				Log.e(ex, "Selector failed");
-			}
-		}
-	}
-
 	@Override
 	public FutureSupplier<NetServer> bind(BindOpts opts) {
 		try {
-			ServerSocketChannel channel = ServerSocketChannel.open();
-			channel.configureBlocking(false);
-			SelectableNetServer server = new SelectableNetServer(channel, opts);
+			SelectableNetServer server = new SelectableNetServer(opts);
 
-			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-				channel.bind(opts.getAddress(), opts.backlog);
-			} else {
-				channel.socket().bind(opts.getAddress(), opts.backlog);
+			try {
+				server.bind(opts);
+			} catch (Throwable ex) {
+				server.close();
+				throw ex;
 			}
 
 			RunnablePromise<NetServer> p = new RunnablePromise<NetServer>() {
 				@Override
 				protected NetServer runTask() throws ClosedChannelException {
-					channel.register(selector, OP_ACCEPT, server);
+					server.register();
 					return server;
 				}
 
@@ -151,7 +166,7 @@ class SelectorHandler implements NetHandler, Runnable {
 				}
 			};
 
-			selectorRun(p);
+			server.acceptors[0].loop.run(p);
 			return p;
 		} catch (Throwable ex) {
 			return failed(ex);
@@ -162,6 +177,9 @@ class SelectorHandler implements NetHandler, Runnable {
 	public FutureSupplier<NetChannel> connect(ConnectOpts o) {
 		try {
 			SocketChannel ch = SocketChannel.open();
+			ChannelConf conf = ChannelConf.get(o);
+			// The inline consumers are notified by the selector thread
+			boolean inline = conf.inline && !o.ssl;
 			Promise<NetChannel> p = new Promise<NetChannel>() {
 				@Override
 				public boolean cancel(boolean mayInterruptIfRunning) {
@@ -173,19 +191,19 @@ class SelectorHandler implements NetHandler, Runnable {
 				@Nullable
 				@Override
 				public Executor getExecutor() {
-					return SelectorHandler.this.getExecutor();
+					return inline ? null : SelectorHandler.this.getExecutor();
 				}
 			};
 
-			if (ConcurrentUtils.isMainThread()) getExecutor().execute(() -> connect(o, ch, p));
-			else connect(o, ch, p);
+			if (ConcurrentUtils.isMainThread()) getExecutor().execute(() -> connect(o, conf, ch, p));
+			else connect(o, conf, ch, p);
 			return p;
 		} catch (Throwable ex) {
 			return failed(ex);
 		}
 	}
 
-	private void connect(ConnectOpts o, SocketChannel ch, Promise<NetChannel> p) {
+	private void connect(ConnectOpts o, ChannelConf conf, SocketChannel ch, Promise<NetChannel> p) {
 		try {
 			SocketAddress addr = o.getAddress();
 			SocketAddress bindAddr = o.getBindAddress();
@@ -201,14 +219,14 @@ class SelectorHandler implements NetHandler, Runnable {
 			}
 
 			ch.connect(addr);
-			startTimer(p, o.connectTimeout, Timer.CONNECT);
+			SelectorLoop loop = nextLoop();
+			startTimer(loop, p, o.connectTimeout, Timer.CONNECT, metrics);
 
-			selectorRun(() -> {
+			loop.run(() -> {
 				try {
-					SelectionKey key = ch.register(selector, OP_CONNECT);
-					SelectableNetChannel nc = ((o.readTimeout | o.writeTimeout | o.sendTimeout) == 0)
-							? new SelectableNetChannel(key)
-							: new SelectableNetChannelWitTimeout(key, o.readTimeout, o.writeTimeout, o.sendTimeout);
+					SelectionKey key = ch.register(loop.selector, OP_CONNECT);
+					SelectableNetChannel nc = new SelectableNetChannel(loop, key, conf,
+							(metrics == null) ? null : metrics.createChannelMetrics(), null);
 
 					key.attach((Selectable) () -> {
 						try {
@@ -217,15 +235,18 @@ class SelectorHandler implements NetHandler, Runnable {
 							key.attach(nc);
 							key.interestOps(0);
 
-							getExecutor().execute(() -> {
-								if (o.ssl) {
+							if (o.ssl) {
+								getExecutor().execute(() -> {
 									if (o.host == null) o.host = ((InetSocketAddress) addr).getHostString();
 									if (o.sslEngine == null) o.sslEngine = SecurityUtils::createClientSslEngine;
-									SslChannel.create(nc, o.sslEngine.apply(o.host, o.port)).onCompletionSupply(p);
-								} else {
-									p.complete(nc);
-								}
-							});
+									SslChannel.create(nc, o.sslEngine.apply(o.host, o.port), o.handshakeExecutor).onCompletionSupply(p);
+								});
+							} else if (conf.inline) {
+								loop.runInline(() -> p.complete(nc), nc);
+							} else {
+								// The consumers are notified by the promise's executor
+								p.complete(nc);
+							}
 						} catch (CancelledKeyException ignore) {
 						} catch (Throwable ex) {
 							getExecutor().execute(() -> p.completeExceptionally(ex));
@@ -241,30 +262,80 @@ class SelectorHandler implements NetHandler, Runnable {
 	}
 
 	@Override
-	public void close() {
-		if (!selector.isOpen()) return;
-		selectorRun(this::doClose);
-		if (!selector.isOpen()) queue.clear();
-	}
+	public FutureSupplier<NetDatagramChannel> bindDatagram(DatagramOpts opts) {
+		DatagramChannel channel = null;
 
-	private void doClose() {
-		for (SelectionKey k : selector.keys()) {
-			try {
-				Object a = k.attachment();
-				if (a instanceof Closeable) ((Closeable) a).close();
-				else k.channel().close();
-			} catch (Throwable ignore) {
+		try {
+			InetAddress group = opts.multicastGroup;
+			SocketAddress addr = opts.getAddress();
+
+			if (group == null) {
+				channel = DatagramChannel.open();
+				channel.configureBlocking(false);
+				setOpts(channel, opts.opt);
+				channel.socket().bind(addr);
+			} else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+				channel = DatagramChannel.open((group instanceof Inet6Address) ? INET6 : INET);
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				setOpts(channel, opts.opt);
+				channel.bind(addr);
+				int joined = 0;
+
+				for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+					if (!ni.isUp() || !ni.supportsMulticast()) continue;
+
+					try {
+						channel.join(group, ni);
+						joined++;
+					} catch (IOException ex) {
+						Log.d(ex, "Failed to join multicast group ", group, " on ", ni);
+					}
+				}
+
+				if (joined == 0) throw new IOException("Failed to join multicast group " + group);
+			} else {
+				throw new IOException("Multicast datagram channels require Android 7.0");
 			}
+
+			DatagramChannel ch = channel;
+			SelectorLoop loop = nextLoop();
+			SelectableDatagram dc = new SelectableDatagram(loop, ch, opts);
+			RunnablePromise<NetDatagramChannel> p = new RunnablePromise<NetDatagramChannel>() {
+				@Override
+				protected NetDatagramChannel runTask() throws ClosedChannelException {
+					dc.key = ch.register(loop.selector, OP_READ, dc);
+					return dc;
+				}
+
+				@Nullable
+				@Override
+				public Executor getExecutor() {
+					return SelectorHandler.this.getExecutor();
+				}
+			};
+
+			loop.run(p);
+			return p;
+		} catch (Throwable ex) {
+			IoUtils.close(channel);
+			return failed(ex);
 		}
+	}
 
-		IoUtils.close(selector);
-		if (inactiveChannelCleaner != null) inactiveChannelCleaner.cancel(false);
-		queue.clear();
+	@Override
+	public void close() {
+		for (SelectorLoop l : loops) {
+			l.close();
+		}
 	}
 
 	@Override
 	public boolean isOpen() {
-		return selector.isOpen();
+		for (SelectorLoop l : loops) {
+			if (!l.selector.isOpen()) return false;
+		}
+		return true;
 	}
 
 	@Override
@@ -282,22 +353,83 @@ class SelectorHandler implements NetHandler, Runnable {
 		return inactivityTimeout;
 	}
 
-	private void cleanInactive() {
-		selectorRun(() -> {
-			Set<SelectionKey> keys = selector.keys();
-			if (keys.isEmpty()) return;
+	@Override
+	public long getInactiveClosedCount() {
+		long n = 0;
+		for (SelectorLoop l : loops) {
+			n += l.inactiveClosed;
+		}
+		return n;
+	}
 
-			long timeout = System.currentTimeMillis() - inactivityTimeout;
+	@Override
+	public long getWakeupCount() {
+		long n = 0;
+		for (SelectorLoop l : loops) {
+			n += l.wakeups;
+		}
+		return n;
+	}
 
-			for (SelectionKey k : keys) {
-				try {
-					Object a = k.attachment();
-					if (a instanceof SelectableNetChannel)
-						((SelectableNetChannel) a).closeIfInactive(timeout);
-				} catch (Throwable ignore) {
-				}
+	@Override
+	public long getSuppressedWakeupCount() {
+		long n = 0;
+		for (SelectorLoop l : loops) {
+			n += l.suppressedWakeups;
+		}
+		return n;
+	}
+
+	@Nullable
+	@Override
+	public NetMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public HandshakeStats getHandshakeStats() {
+		return handshakeStats;
+	}
+
+	@Override
+	public Cancellable schedule(Runnable task, long delay, TimeUnit unit) {
+		SelectorLoop[] loops = this.loops;
+		SelectorLoop l = loops[(int) (Thread.currentThread().getId() % loops.length)];
+		ScheduledTask t = new ScheduledTask(task);
+		l.timers.schedule(t, unit.toMillis(delay));
+		return t;
+	}
+
+	private SelectorLoop nextLoop() {
+		SelectorLoop[] loops = this.loops;
+		int n = loops.length;
+		if (n == 1) return loops[0];
+
+		// Round-robin start position, then pick the loop with the least number of keys
+		int start = (NEXT_LOOP.getAndIncrement(this) & Integer.MAX_VALUE) % n;
+		SelectorLoop loop = loops[start];
+		int load = loop.getLoad();
+
+		for (int i = 1; (i < n) && (load != 0); i++) {
+			SelectorLoop l = loops[(start + i) % n];
+			int ld = l.getLoad();
+
+			if (ld < load) {
+				loop = l;
+				load = ld;
 			}
-		});
+		}
+
+		return loop;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static void setOpts(DatagramChannel ch, Map<SocketOption<?>, ?> opts) throws IOException {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+			for (Map.Entry<SocketOption<?>, ?> e : opts.entrySet()) {
+				ch.setOption((SocketOption) e.getKey(), e.getValue());
+			}
+		}
 	}
 
 	@SuppressWarnings({"unchecked", "rawtypes"})
@@ -309,8 +441,55 @@ class SelectorHandler implements NetHandler, Runnable {
 		}
 	}
 
+	@Nullable
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (Throwable ex) {
+			return null;
+		}
+	}
+
+	@Nullable
+	static WriteWatermark getWatermark(NetChannel ch) {
+		if (ch instanceof SelectableNetChannel) return ((SelectableNetChannel) ch).watermark;
+		return LoopbackHandler.getWatermark(ch);
+	}
+
+	// Write up to max bytes
+	private static long writeLimited(SocketChannel ch, ByteBuffer[] buf, int off, int len, long max)
+			throws IOException {
+		if (max == Long.MAX_VALUE) return ch.write(buf, off, len);
+
+		for (int i = off, end = off + len; i < end; i++) {
+			ByteBuffer b = buf[i];
+			int rem = b.remaining();
+
+			if (rem < max) {
+				max -= rem;
+				continue;
+			}
+
+			int lim = b.limit();
+			b.limit(b.position() + (int) max);
+
+			try {
+				return ch.write(buf, off, i - off + 1);
+			} finally {
+				b.limit(lim);
+			}
+		}
+
+		return ch.write(buf, off, len);
+	}
+
 	private static int getBufferOffset(ByteBuffer[] buf) {
-		for (int i = 0; i < buf.length; i++) {
+		return getBufferOffset(buf, 0, buf.length);
+	}
+
+	private static int getBufferOffset(ByteBuffer[] buf, int from, int to) {
+		for (int i = from; i < to; i++) {
 			if (buf[i].hasRemaining()) {
 				return i;
 			}
@@ -318,112 +497,542 @@ class SelectorHandler implements NetHandler, Runnable {
 		return -1;
 	}
 
-	private boolean isSelectorThread() {
-		return Thread.currentThread() == selectorThread;
-	}
+	private final class SelectorLoop implements Runnable {
+		final Selector selector;
+		final TimingWheel timers;
+		private final Thread thread;
+		private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+		// The channels ordered by the last activity time, the least recently active first.
+		// Accessed only by the selector thread.
+		private SelectableNetChannel idleHead;
+		private SelectableNetChannel idleTail;
+		volatile long inactiveClosed;
+		// 0 - the selector is blocked or about to block and must be woken up, 1 - the selector
+		// is awake or a wakeup is pending
+		@Keep
+		volatile int wakeup = 1;
+		@Keep
+		volatile long wakeups;
+		@Keep
+		volatile long suppressedWakeups;
+
+		SelectorLoop(String name) throws IOException {
+			selector = Selector.open();
+			timers = new TimingWheel(TIMER_TICK, TIMER_WHEEL_SIZE, this::wakeup);
+			thread = new NetThread(this, name);
+			thread.setDaemon(true);
+		}
+
+		void start() {
+			thread.start();
+			if (inactivityTimeout != 0) timers.schedule(new InactivityCleaner(), inactivityTimeout);
+		}
+
+		@Override
+		public void run() {
+			while (selector.isOpen()) {
+				try {
+					wakeup = 0;
+
+					// The tasks and timers, added after the flag reset, issue a wakeup
+					long timeout = timers.tick();
+					if (queue.isEmpty()) selector.select(timeout);
+					else selector.selectNow();
+
+					wakeup = 1;
+					long start = System.nanoTime();
+					Set<SelectionKey> keys = selector.selectedKeys();
+
+					for (Iterator<SelectionKey> it = keys.iterator(); it.hasNext(); ) {
+						SelectionKey k = it.next();
+						it.remove();
+
+						if (k.isValid()) {
+							Selectable select = (Selectable) k.attachment();
+							if (select != null) select.select();
+						}
+					}
+
+					if (ioRatio == 100) {
+						runTasks(Long.MAX_VALUE);
+					} else {
+						long ioTime = System.nanoTime() - start;
+						runTasks(ioTime * (100 - ioRatio) / ioRatio);
+					}
+
+					if (metrics != null) metrics.selected(System.nanoTime() - start);
+				} catch (Throwable ex) {
+					if (!selector.isOpen()) break;
+					Log.e(ex, "Selector failed");
+				}
+			}
+		}
+
+		// Run the queued tasks until the queue is empty or the time limit is exceeded. At least
+		// one batch is run to guarantee progress, when there is no I/O
+		private void runTasks(long maxNanos) {
+			long start = System.nanoTime();
+
+			for (int n = 1; ; n++) {
+				Runnable run = queue.poll();
+				if (run == null) return;
+				run.run();
+				if (((n % TASK_BATCH) == 0) && (System.nanoTime() - start >= maxNanos)) return;
+			}
+		}
+
+		void wakeup() {
+			if (WAKEUP.compareAndSet(this, 0, 1)) {
+				WAKEUPS.incrementAndGet(this);
+				selector.wakeup();
+			} else {
+				SUPPRESSED.incrementAndGet(this);
+			}
+		}
+
+		boolean isSelectorThread() {
+			return Thread.currentThread() == thread;
+		}
+
+		void runInline(Runnable task, Object owner) {
+			long start = System.nanoTime();
+
+			try {
+				task.run();
+			} finally {
+				long time = System.nanoTime() - start;
+
+				if (time > INLINE_WARN_NANOS) {
+					Log.w("Inline callback blocked the selector thread for ",
+							TimeUnit.NANOSECONDS.toMillis(time), "ms: ", owner);
+				}
+			}
+		}
+
+		void run(Runnable run) {
+			if (isSelectorThread()) {
+				run.run();
+			} else {
+				queue.add(run);
+				wakeup();
+			}
+		}
+
+		// The number of registered keys. The keys set is not thread-safe, but the
+		// size is only used as a hint for balancing.
+		int getLoad() {
+			try {
+				return selector.keys().size();
+			} catch (Throwable ex) {
+				return Integer.MAX_VALUE;
+			}
+		}
+
+		void close() {
+			if (!selector.isOpen()) return;
+			run(this::doClose);
+			if (!selector.isOpen()) clearQueue();
+		}
 
-	private void selectorRun(Runnable run) {
-		if (isSelectorThread()) {
-			run.run();
-		} else {
-			queue.add(run);
-			selector.wakeup();
+		// The queued tasks are discarded, but the resources, held by the tasks, are released
+		private void clearQueue() {
+			for (Runnable r = queue.poll(); r != null; r = queue.poll()) {
+				if (r instanceof Closeable) IoUtils.close((Closeable) r);
+			}
+		}
+
+		private void doClose() {
+			for (SelectionKey k : selector.keys()) {
+				try {
+					Object a = k.attachment();
+					if (a instanceof Closeable) ((Closeable) a).close();
+					else k.channel().close();
+				} catch (Throwable ignore) {
+				}
+			}
+
+			IoUtils.close(selector);
+			clearQueue();
+		}
+
+		private final class InactivityCleaner extends TimingWheel.Timeout {
+
+			@Override
+			protected void expired() {
+				if (selector.isOpen()) timers.schedule(this, closeInactive());
+			}
+		}
+
+		// Close the expired channels from the head of the idle list and
+		// return the delay until the next channel expires
+		private long closeInactive() {
+			long timeout = System.currentTimeMillis() - inactivityTimeout;
+
+			for (SelectableNetChannel c = idleHead; c != null; c = idleHead) {
+				if (c.lastActive >= timeout) return c.lastActive - timeout;
+				removeIdle(c);
+
+				if (c.isOpen()) {
+					Log.d("Closing channel due to inactivity: ", c);
+					inactiveClosed++;
+					c.close();
+				}
+			}
+
+			return inactivityTimeout;
+		}
+
+		void markActive(SelectableNetChannel c) {
+			assert isSelectorThread();
+			c.lastActive = System.currentTimeMillis();
+			if (c == idleTail) return;
+			if (c.idleLinked) removeIdle(c);
+
+			c.idlePrev = idleTail;
+			c.idleLinked = true;
+			if (idleTail == null) idleHead = c;
+			else idleTail.idleNext = c;
+			idleTail = c;
+		}
+
+		void removeIdle(SelectableNetChannel c) {
+			assert isSelectorThread();
+			if (!c.idleLinked) return;
+
+			SelectableNetChannel prev = c.idlePrev;
+			SelectableNetChannel next = c.idleNext;
+			if (prev == null) idleHead = next;
+			else prev.idleNext = next;
+			if (next == null) idleTail = prev;
+			else next.idlePrev = prev;
+			c.idlePrev = c.idleNext = null;
+			c.idleLinked = false;
 		}
 	}
 
-	private void startTimer(Promise<?> task, int timeout, byte type) {
+	private void startTimer(SelectorLoop loop, Promise<?> task, int timeout, byte type,
+													@Nullable NetMetrics metrics) {
 		if ((timeout > 0) && !task.isDone()) {
-			Timer t = new Timer(task, type);
-			ScheduledFuture<?> f = t.future = getScheduler().schedule(t, timeout, SECONDS);
+			Timer t = new Timer(task, type, metrics);
+			loop.timers.schedule(t, timeout * 1000L);
 			task.thenRun(t::cancel);
-			if ((t.future == null) && task.isDone()) f.cancel(false);
 		}
 	}
 
-	private static final class Timer implements Runnable {
+	private final class Timer extends TimingWheel.Timeout implements Runnable {
 		static final byte CONNECT = 0;
 		static final byte READ = 1;
 		static final byte WRITE = 2;
 		static final byte SEND = 3;
-		private Completable<?> task;
+		private final Completable<?> task;
 		private final byte type;
-		ScheduledFuture<?> future;
+		@Nullable
+		private final NetMetrics metrics;
 
-		Timer(Completable<?> task, byte type) {
+		Timer(Completable<?> task, byte type, @Nullable NetMetrics metrics) {
 			this.task = task;
 			this.type = type;
+			this.metrics = metrics;
+		}
+
+		@Override
+		protected void expired() {
+			// Called by the selector thread
+			getExecutor().execute(this);
 		}
 
 		@Override
 		public void run() {
-			ScheduledFuture<?> f = future;
-			Completable<?> t = task;
+			if (task.isDone()) return;
+			String msg;
+
+			switch (type) {
+				case CONNECT:
+					msg = "Connect timeout";
+					break;
+				case READ:
+					msg = "Read timeout";
+					break;
+				case WRITE:
+					msg = "Write timeout";
+					break;
+				default:
+					msg = "Send timeout";
+			}
 
-			if (f != null) {
-				f.cancel(false);
-				future = null;
+			if (task.completeExceptionally(new TimeoutException(msg)) && (metrics != null)) {
+				metrics.timeout();
 			}
+		}
+	}
 
-			if (t != null) {
-				task = null;
-				String msg;
+	private final class ScheduledTask extends TimingWheel.Timeout {
+		private final Runnable task;
 
-				switch (type) {
-					case CONNECT:
-						msg = "Connect timeout";
-						break;
-					case READ:
-						msg = "Read timeout";
-						break;
-					case WRITE:
-						msg = "Write timeout";
-						break;
-					default:
-						msg = "Send timeout";
+		ScheduledTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		protected void expired() {
+			getExecutor().execute(task);
+		}
+	}
+
+	private interface Selectable {
+		void select();
+	}
+
+	private final class SelectableDatagram implements NetDatagramChannel, Selectable {
+		private final SelectorLoop loop;
+		private final DatagramChannel channel;
+		private final DatagramHandler handler;
+		private final int batchSize;
+		// Accessed only by the selector thread
+		private final ByteBuffer recvBuf;
+		private final ConcurrentLinkedQueue<PendingDatagram> pending = new ConcurrentLinkedQueue<>();
+		SelectionKey key;
+		private boolean released;
+
+		SelectableDatagram(SelectorLoop loop, DatagramChannel channel, DatagramOpts o) {
+			this.loop = loop;
+			this.channel = channel;
+			handler = requireNonNull(o.handler);
+			batchSize = Math.max(1, o.batchSize);
+			recvBuf = ByteBufferPool.allocate(o.maxDatagramSize);
+		}
+
+		@Override
+		public NetHandler getHandler() {
+			return SelectorHandler.this;
+		}
+
+		@Override
+		public int getPort() {
+			return channel.socket().getLocalPort();
+		}
+
+		@Override
+		public SocketAddress getBindAddress() {
+			return channel.socket().getLocalSocketAddress();
+		}
+
+		@Override
+		public FutureSupplier<Void> send(ByteBuffer data, SocketAddress target) {
+			if (pending.isEmpty()) {
+				try {
+					if (channel.send(data.duplicate(), target) != 0) return completedVoid();
+				} catch (Throwable ex) {
+					return failed(ex);
 				}
-				t.completeExceptionally(new TimeoutException(msg));
 			}
+
+			PendingDatagram p = new PendingDatagram(ByteBufferPool.copyOf(data), target);
+			pending.add(p);
+			if (!channel.isOpen()) close();
+			else loop.run(this::setInterest);
+			return p;
 		}
 
-		void cancel() {
-			ScheduledFuture<?> f = future;
-			task = null;
+		@Override
+		public void select() {
+			SelectionKey k = key;
+			if (k.isReadable()) receive();
+			if (k.isValid() && k.isWritable()) flush();
+		}
+
+		private void receive() {
+			ByteBuffer buf = recvBuf;
+
+			for (int i = 0; i < batchSize; i++) {
+				SocketAddress from;
 
-			if (f != null) {
-				f.cancel(false);
-				future = null;
+				try {
+					buf.clear();
+					from = channel.receive(buf);
+					if (from == null) return;
+				} catch (Throwable ex) {
+					Log.e(ex, "Failed to receive datagram: ", this);
+					close();
+					return;
+				}
+
+				try {
+					buf.flip();
+					handler.receive(this, buf, from);
+				} catch (Throwable ex) {
+					Log.e(ex, "Datagram handler failed: ", this);
+				}
+			}
+		}
+
+		private void flush() {
+			for (int i = 0; i < batchSize; i++) {
+				PendingDatagram p = pending.peek();
+				if (p == null) break;
+
+				try {
+					if (channel.send(p.data, p.target) == 0) return;
+				} catch (Throwable ex) {
+					pending.poll();
+					p.completeExceptionally(ex);
+					continue;
+				}
+
+				pending.poll();
+				p.complete(null);
+			}
+
+			setInterest();
+		}
+
+		private void setInterest() {
+			SelectionKey k = key;
+			if ((k == null) || !k.isValid()) return;
+			k.interestOps(pending.isEmpty() ? OP_READ : (OP_READ | OP_WRITE));
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() {
+			IoUtils.close(channel);
+			Throwable err = ChannelClosed.get();
+
+			for (PendingDatagram p = pending.poll(); p != null; p = pending.poll()) {
+				p.completeExceptionally(err);
 			}
+
+			loop.run(() -> {
+				if (released) return;
+				released = true;
+				ByteBufferPool.release(recvBuf);
+			});
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "SelectableDatagram: " + channel.socket().getLocalSocketAddress();
 		}
 	}
 
-	private interface Selectable {
-		void select();
+	private static final class PendingDatagram extends Promise<Void> {
+		final ByteBuffer data;
+		final SocketAddress target;
+
+		PendingDatagram(ByteBuffer data, SocketAddress target) {
+			this.data = data;
+			this.target = target;
+		}
+
+		@Override
+		public boolean complete(@Nullable Void value) {
+			ByteBufferPool.release(data);
+			return super.complete(value);
+		}
+
+		@Override
+		public boolean completeExceptionally(@NonNull Throwable ex) {
+			ByteBufferPool.release(data);
+			return super.completeExceptionally(ex);
+		}
 	}
 
-	private final class SelectableNetServer implements NetServer, Selectable {
-		private final ServerSocketChannel channel;
+	private static final AtomicIntegerFieldUpdater<SelectableNetServer> CONNECTIONS =
+			AtomicIntegerFieldUpdater.newUpdater(SelectableNetServer.class, "connections");
+	private static final AtomicIntegerFieldUpdater<SelectableNetServer> PAUSED =
+			AtomicIntegerFieldUpdater.newUpdater(SelectableNetServer.class, "paused");
+	private static final AtomicIntegerFieldUpdater<SelectableNetServer.PendingConnection> PENDING =
+			AtomicIntegerFieldUpdater.newUpdater(SelectableNetServer.PendingConnection.class, "pending");
+
+	private final class SelectableNetServer implements NetServer {
+		private final Acceptor[] acceptors;
 		private final Map<SocketOption<?>, ?> opts;
 		private final ConnectionHandler handler;
 		private final Supplier<SSLEngine> ssl;
-		private final int readTimeout;
-		private final int writeTimeout;
-		private final int sendTimeout;
-		private final boolean hasTimeout;
+		@Nullable
+		private final Executor handshakeExecutor;
+		private final ChannelConf conf;
+		@Nullable
+		private final NetMetrics metrics;
+		private final int acceptBatch;
+		private final int maxConnections;
+		@Nullable
+		private final TokenBucket writeRate;
+		// The number of open connections, counted only if maxConnections is set
+		@Keep
+		volatile int connections;
+		@Keep
+		volatile int paused;
 
-		public SelectableNetServer(ServerSocketChannel channel, BindOpts o) {
-			this.channel = channel;
+		public SelectableNetServer(BindOpts o) {
 			opts = o.opt.isEmpty() ? Collections.emptyMap() : new HashMap<>(o.opt);
 			handler = requireNonNull(o.handler);
-			readTimeout = o.readTimeout;
-			writeTimeout = o.writeTimeout;
-			sendTimeout = o.sendTimeout;
-			hasTimeout = ((readTimeout | writeTimeout | sendTimeout) != 0);
+			conf = ChannelConf.get(o);
+			handshakeExecutor = o.handshakeExecutor;
+			acceptBatch = Math.max(1, o.acceptBatch);
+			maxConnections = Math.max(0, o.maxConnections);
+			writeRate = TokenBucket.create(o.serverWriteRateLimit, o.serverWriteRateBurst);
+			NetMetrics m = SelectorHandler.this.metrics;
+			metrics = (m == null) ? null : m.createServerMetrics();
 
 			if (o.ssl) {
 				ssl = (o.sslEngine != null) ? o.sslEngine : SecurityUtils::createServerSslEngine;
 			} else {
 				ssl = null;
 			}
+
+			int n = Math.max(1, o.acceptors);
+
+			if ((n > 1) && ((Build.VERSION.SDK_INT < Build.VERSION_CODES.N) || (SO_REUSEPORT == null))) {
+				Log.w("SO_REUSEPORT is not supported - using a single acceptor");
+				n = 1;
+			}
+
+			acceptors = new Acceptor[n];
+		}
+
+		void bind(BindOpts o) throws IOException {
+			SocketAddress addr = o.getAddress();
+
+			for (int i = 0; i < acceptors.length; i++) {
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				acceptors[i] = new Acceptor(loops[i % loops.length], channel);
+				channel.configureBlocking(false);
+
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+					if (acceptors.length > 1) channel.setOption(SO_REUSEPORT, true);
+					channel.bind(addr, o.backlog);
+				} else {
+					channel.socket().bind(addr, o.backlog);
+				}
+
+				// The subsequent acceptors are bound to the same port
+				if ((i == 0) && (addr instanceof InetSocketAddress)) {
+					addr = new InetSocketAddress(((InetSocketAddress) addr).getAddress(), getPort());
+				}
+			}
+		}
+
+		// Register the first acceptor, the others are registered asynchronously
+		void register() throws ClosedChannelException {
+			acceptors[0].register();
+
+			for (int i = 1; i < acceptors.length; i++) {
+				Acceptor a = acceptors[i];
+				a.loop.run(() -> {
+					try {
+						a.register();
+					} catch (Throwable ex) {
+						Log.e(ex, "Failed to register acceptor ", a.channel);
+						IoUtils.close(a.channel);
+					}
+				});
+			}
 		}
 
 		@Override
@@ -433,43 +1042,42 @@ class SelectorHandler implements NetHandler, Runnable {
 
 		@Override
 		public int getPort() {
-			return channel.socket().getLocalPort();
+			return acceptors[0].channel.socket().getLocalPort();
 		}
 
 		@Override
 		public SocketAddress getBindAddress() {
-			return channel.socket().getLocalSocketAddress();
+			return acceptors[0].channel.socket().getLocalSocketAddress();
 		}
 
-		@Override
-		public void select() {
+		private void registerConnection(SelectorLoop l, SocketChannel ch) {
 			SelectableNetChannel nc;
-			SocketChannel ch = null;
 
 			try {
-				ch = channel.accept();
-				if (ch == null) return;
-
-				ch.configureBlocking(false);
-				setOpts(ch, opts);
-
-				SelectionKey key = ch.register(selector, 0);
-				nc = hasTimeout
-						? new SelectableNetChannelWitTimeout(key, readTimeout, writeTimeout, sendTimeout)
-						: new SelectableNetChannel(key);
+				SelectionKey key = ch.register(l.selector, 0);
+				nc = new SelectableNetChannel(l, key, conf,
+						(metrics == null) ? null : metrics.createChannelMetrics(), writeRate);
 				key.attach(nc);
+				if (maxConnections != 0) nc.server = this;
 			} catch (CancelledKeyException ignore) {
+				connectionClosed();
 				return;
 			} catch (Throwable ex) {
 				IoUtils.close(ch);
-				Log.e(ex, "Failed to accept a connection");
+				connectionClosed();
+				Log.e(ex, "Failed to register a connection");
+				return;
+			}
+
+			if ((ssl == null) && conf.inline) {
+				l.runInline(() -> acceptConnection(nc), nc);
 				return;
 			}
 
 			try {
 				getExecutor().execute(() -> {
 					if (ssl != null) {
-						SslChannel.create(nc, ssl.get()).onCompletion((sslc, err) -> {
+						SslChannel.create(nc, ssl.get(), handshakeExecutor).onCompletion((sslc, err) -> {
 							if (err != null) {
 								Log.e(err, "Failed to create SSL channel");
 								nc.close();
@@ -496,44 +1104,212 @@ class SelectorHandler implements NetHandler, Runnable {
 			}
 		}
 
+		// An accepted connection, handed off to another loop. The connection is closed, if the loop
+		// is closed before the connection is registered.
+		final class PendingConnection implements Runnable, Closeable {
+			private final SelectorLoop loop;
+			private final SocketChannel channel;
+			@Keep
+			volatile int pending = 1;
+
+			PendingConnection(SelectorLoop loop, SocketChannel channel) {
+				this.loop = loop;
+				this.channel = channel;
+			}
+
+			@Override
+			public void run() {
+				if (PENDING.compareAndSet(this, 1, 0)) registerConnection(loop, channel);
+			}
+
+			@Override
+			public void close() {
+				if (!PENDING.compareAndSet(this, 1, 0)) return;
+				IoUtils.close(channel);
+				connectionClosed();
+			}
+		}
+
+		// Reserve a connection slot or pause accepting, if the limit is reached
+		boolean connectionOpened() {
+			if (maxConnections == 0) return true;
+
+			for (int n = connections; ; n = connections) {
+				if (n >= maxConnections) {
+					if (PAUSED.compareAndSet(this, 0, 1)) updateAcceptInterest();
+					// The connections could have been closed concurrently
+					if (connections < maxConnections) resumeAccept();
+					return false;
+				}
+
+				if (CONNECTIONS.compareAndSet(this, n, n + 1)) return true;
+			}
+		}
+
+		void connectionClosed() {
+			if (maxConnections == 0) return;
+			CONNECTIONS.decrementAndGet(this);
+			if (paused != 0) resumeAccept();
+		}
+
+		private void resumeAccept() {
+			if (PAUSED.compareAndSet(this, 1, 0)) updateAcceptInterest();
+		}
+
+		// The interest is set by the selector threads according to the latest state
+		private void updateAcceptInterest() {
+			for (Acceptor a : acceptors) {
+				a.loop.run(a::updateInterest);
+			}
+		}
+
 		@Override
 		public boolean isOpen() {
-			return channel.isOpen();
+			Acceptor a = acceptors[0];
+			return (a != null) && a.channel.isOpen();
 		}
 
 		@Override
 		public void close() {
-			try {
-				channel.close();
-			} catch (Throwable ex) {
-				Log.e(ex, "Failed to close server channel");
+			for (Acceptor a : acceptors) {
+				if (a == null) continue;
+
+				try {
+					a.channel.close();
+				} catch (Throwable ex) {
+					Log.e(ex, "Failed to close server channel");
+				}
 			}
 		}
 
+		@Nullable
+		@Override
+		public NetMetrics getMetrics() {
+			return metrics;
+		}
+
 		@Override
 		public String toString() {
-			return channel.toString();
+			return acceptors[0].channel.toString();
+		}
+
+		private final class Acceptor implements Selectable {
+			final SelectorLoop loop;
+			final ServerSocketChannel channel;
+			private SelectionKey key;
+
+			Acceptor(SelectorLoop loop, ServerSocketChannel channel) {
+				this.loop = loop;
+				this.channel = channel;
+			}
+
+			void register() throws ClosedChannelException {
+				key = channel.register(loop.selector, (paused == 0) ? OP_ACCEPT : 0, this);
+			}
+
+			void updateInterest() {
+				try {
+					if ((key != null) && key.isValid()) key.interestOps((paused == 0) ? OP_ACCEPT : 0);
+				} catch (CancelledKeyException ignore) {
+				}
+			}
+
+			// Accept up to acceptBatch pending connections
+			@Override
+			public void select() {
+				for (int i = 0; i < acceptBatch; i++) {
+					if (!connectionOpened()) return;
+					SocketChannel ch = null;
+
+					try {
+						ch = channel.accept();
+
+						if (ch == null) {
+							connectionClosed();
+							return;
+						}
+
+						if (metrics != null) metrics.accepted();
+						ch.configureBlocking(false);
+						setOpts(ch, opts);
+					} catch (Throwable ex) {
+						IoUtils.close(ch);
+						connectionClosed();
+						Log.e(ex, "Failed to accept a connection");
+						return;
+					}
+
+					SelectorLoop l = nextLoop();
+
+					if (l == loop) {
+						registerConnection(l, ch);
+					} else {
+						PendingConnection pc = new PendingConnection(l, ch);
+						l.run(pc);
+						// The loop could have been closed before the task is queued
+						if (!l.selector.isOpen()) pc.close();
+					}
+				}
+			}
 		}
 	}
 
-	private static final AtomicReferenceFieldUpdater<SelectableNetChannel, ReadPromise> READER =
-			AtomicReferenceFieldUpdater.newUpdater(SelectableNetChannel.class, ReadPromise.class, "reader");
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static final AtomicReferenceFieldUpdater<SelectableNetChannel, ReadPromise<?>> READER =
+			(AtomicReferenceFieldUpdater) AtomicReferenceFieldUpdater.newUpdater(SelectableNetChannel.class, ReadPromise.class, "reader");
 	private static final AtomicIntegerFieldUpdater<SelectableNetChannel> WRITING =
 			AtomicIntegerFieldUpdater.newUpdater(SelectableNetChannel.class, "writing");
+	private static final AtomicReferenceFieldUpdater<SelectableNetChannel, SelectableNetServer> SERVER =
+			AtomicReferenceFieldUpdater.newUpdater(SelectableNetChannel.class, SelectableNetServer.class, "server");
+
 
 	private class SelectableNetChannel
 			extends ConcurrentQueueBase<ByteBufferArraySupplier, WritePromise>
 			implements NetChannel, Selectable {
+		private final SelectorLoop loop;
 		private final SelectionKey key;
+		private final ChannelConf conf;
 		@Keep
-		volatile ReadPromise reader;
+		volatile ReadPromise<?> reader;
 		@Keep
 		volatile int writing;
+		private volatile boolean corked;
+		private volatile boolean readSuspended;
+		@Nullable
+		private final WriteWatermark watermark;
+		private int writeBatchSize;
+		private WritePromise[] batch;
+		private ByteBuffer[][] batchBufs;
+		private ByteBuffer[] gather;
 		private long lastActive;
+		private SelectableNetChannel idlePrev;
+		private SelectableNetChannel idleNext;
+		private boolean idleLinked;
 		private CloseListener closeListener;
-
-		public SelectableNetChannel(SelectionKey key) {
+		@Nullable
+		private final NetMetrics metrics;
+		// The server, limiting the number of connections
+		@Nullable
+		volatile SelectableNetServer server;
+		@Nullable
+		private final TokenBucket writeRate;
+		@Nullable
+		private final TokenBucket serverWriteRate;
+		// The bytes left to write before yielding, accessed by the writing thread only
+		private long quantum;
+
+		// Must be created by the selector thread
+		public SelectableNetChannel(SelectorLoop loop, SelectionKey key, ChannelConf conf,
+																@Nullable NetMetrics metrics, @Nullable TokenBucket serverWriteRate) {
+			this.loop = loop;
 			this.key = key;
+			this.conf = conf;
+			this.metrics = metrics;
+			this.serverWriteRate = serverWriteRate;
+			writeRate = TokenBucket.create(conf.writeRateLimit, conf.writeRateBurst);
+			writeBatchSize = conf.writeBatchSize;
+			watermark = WriteWatermark.create(conf.writeHighWatermark, conf.writeLowWatermark);
+			markActive();
 		}
 
 		@Override
@@ -547,12 +1323,18 @@ class SelectorHandler implements NetHandler, Runnable {
 
 				if (((ready & OP_READ) != 0) && ((interest & OP_READ) != 0)) {
 					key.interestOps(interest &= ~OP_READ);
-					getExecutor().execute(this::doRead);
+					if (conf.inline) loop.runInline(this::doRead, this);
+					else getExecutor().execute(this::doRead);
 				}
 
-				if (((ready & OP_WRITE) != 0) && ((interest & OP_WRITE) != 0)) {
+				// The inline read could have changed the interest
+				if (((ready & OP_WRITE) != 0) && (((interest = key.interestOps()) & OP_WRITE) != 0)) {
 					key.interestOps(interest & ~OP_WRITE);
-					if (WRITING.compareAndSet(this, 0, 1)) getExecutor().execute(this::doWrite);
+
+					if (WRITING.compareAndSet(this, 0, 1)) {
+						if (conf.inline) loop.runInline(this::doWrite, this);
+						else getExecutor().execute(this::doWrite);
+					}
 				}
 			} catch (CancelledKeyException ignore) {
 			} catch (Throwable ex) {
@@ -563,11 +1345,22 @@ class SelectorHandler implements NetHandler, Runnable {
 
 		@Override
 		public FutureSupplier<ByteBuffer> read(ByteBufferSupplier supplier, @Nullable Completion<ByteBuffer> consumer) {
-			ReadPromise p = new ReadPromise(supplier);
+			BufferReadPromise p = new BufferReadPromise(supplier);
+			if (consumer != null) p.onCompletion(consumer);
+			return read(p);
+		}
+
+		@Override
+		public FutureSupplier<ByteBuffer[]> scatterRead(ByteBufferArraySupplier supplier,
+																									 @Nullable Completion<ByteBuffer[]> consumer) {
+			ScatterReadPromise p = new ScatterReadPromise(supplier);
 			if (consumer != null) p.onCompletion(consumer);
+			return read(p);
+		}
 
+		private <T> FutureSupplier<T> read(ReadPromise<T> p) {
 			if (!READER.compareAndSet(this, null, p)) {
-				for (ReadPromise r = reader; (r != null); r = reader) {
+				for (ReadPromise<?> r = reader; (r != null); r = reader) {
 					if (!r.isDone()) {
 						p.completeExceptionally(new IOException("Read pending"));
 						return p;
@@ -580,38 +1373,33 @@ class SelectorHandler implements NetHandler, Runnable {
 			if (!isOpen()) {
 				p.completeExceptionally(ChannelClosed.get());
 				READER.compareAndSet(this, p, null);
-			} else {
+			} else if (!readSuspended) {
 				assertEquals(0, (key.interestOps() & OP_READ));
 				setInterest(p, OP_READ);
 			}
 
-			startTimer(p, getReadTimeout(), Timer.READ);
+			startTimer(loop, p, getReadTimeout(), Timer.READ, metrics);
 			return p;
 		}
 
 		private void doRead() {
-			ReadPromise p = reader;
+			ReadPromise<?> p = reader;
 			if (p == null) return;
 
-			ByteBufferSupplier bs = p.supplier;
-
-			if (bs == null) {
+			if (p.isReleased()) {
 				READER.compareAndSet(this, p, null);
 				return;
 			}
 
-			ByteBuffer buf = bs.getByteBuffer();
-
 			try {
-				int i = channel().read(buf);
+				long i = p.read(channel());
+				if (metrics != null) metrics.read(i);
 
-				if ((i != 0) || !buf.hasRemaining()) {
-					if (i == -1) buf.limit(buf.position()); // End of stream
-					else buf.flip();
+				if ((i != 0) || p.isFull()) {
 					READER.compareAndSet(this, p, null);
-					p.complete(buf);
+					p.completeRead(i == -1);
 				} else {
-					p.releaseBuf(buf);
+					p.releaseRead();
 					setInterest(p, OP_READ);
 				}
 			} catch (Throwable ex) {
@@ -622,14 +1410,33 @@ class SelectorHandler implements NetHandler, Runnable {
 
 		@Override
 		public FutureSupplier<Void> write(ByteBufferArraySupplier supplier, @Nullable Completion<Void> consumer) {
+			return write(supplier, consumer, -1);
+		}
+
+		@Override
+		public FutureSupplier<Void> write(ByteBuffer... buf) {
+			if (watermark == null) return write(() -> buf, null, -1);
+
+			long size = 0;
+			for (ByteBuffer b : buf) {
+				size += b.remaining();
+			}
+
+			return write(() -> buf, null, size);
+		}
+
+		private FutureSupplier<Void> write(ByteBufferArraySupplier supplier, @Nullable Completion<Void> consumer,
+																			 long size) {
 			if (!isOpen()) return failed(ChannelClosed.get());
 
 			WritePromise p = new WritePromise(supplier);
 			if (consumer != null) p.addConsumer(consumer);
+			if (size >= 0) addPending(p, size);
+			if (metrics != null) metrics.queued(1);
 			offerNode(p);
-			if (peekNode() == p) setInterest(p, OP_WRITE);
+			if ((peekNode() == p) && !corked) setInterest(p, OP_WRITE);
 
-			startTimer(p, getWriteTimeout(), Timer.WRITE);
+			startTimer(loop, p, getWriteTimeout(), Timer.WRITE, metrics);
 			return p;
 		}
 
@@ -641,16 +1448,92 @@ class SelectorHandler implements NetHandler, Runnable {
 
 			SendPromise p = new SendPromise(headerSupplier, ch, off, len);
 			if (consumer != null) p.addConsumer(consumer);
+			addPending(p, len);
+			if (metrics != null) metrics.queued(1);
 			offerNode(p);
-			if (peekNode() == p) setInterest(p, OP_WRITE);
+			if ((peekNode() == p) && !corked) setInterest(p, OP_WRITE);
 
-			startTimer(p, getSendTimeout(), Timer.SEND);
+			startTimer(loop, p, getSendTimeout(), Timer.SEND, metrics);
 			return p;
 		}
 
+		@Override
+		public boolean isWritable() {
+			return (watermark == null) || watermark.isWritable();
+		}
+
+		@Override
+		public FutureSupplier<Void> whenWritable() {
+			return (watermark == null) ? completedVoid() : watermark.whenWritable();
+		}
+
+		@Override
+		public void suspendRead() {
+			readSuspended = true;
+			loop.run(() -> {
+				try {
+					if (key.isValid()) key.interestOps(key.interestOps() & ~OP_READ);
+				} catch (CancelledKeyException ignore) {
+				}
+			});
+		}
+
+		@Override
+		public void resumeRead() {
+			readSuspended = false;
+			ReadPromise<?> r = reader;
+			if ((r != null) && !r.isDone()) setInterest(r, OP_READ);
+		}
+
+		private void addPending(WritePromise p, ByteBuffer[] buf) {
+			if (watermark == null) {
+				p.size = 0;
+				return;
+			}
+
+			long size = 0;
+			for (ByteBuffer b : buf) {
+				size += b.remaining();
+			}
+			addPending(p, size);
+		}
+
+		private void addPending(WritePromise p, long size) {
+			p.size = size;
+			if (watermark != null) watermark.add(size);
+		}
+
+		private void pollWrite(WritePromise p) {
+			assert p == peekNode();
+			poll();
+			if ((watermark != null) && (p.size > 0)) watermark.remove(p.size);
+			if (metrics != null) metrics.queued(-1);
+		}
+
+		@Override
+		public void cork() {
+			if (writeBatchSize == 0) writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+			corked = true;
+		}
+
+		@Override
+		public void flush() {
+			corked = false;
+			WritePromise p = peekNode();
+			if (p != null) setInterest(p, OP_WRITE);
+		}
+
 		private void doWrite() {
+			quantum = (conf.writeQuantum > 0) ? conf.writeQuantum : Long.MAX_VALUE;
+
 			try {
 				for (SocketChannel ch = channel(); ; ) {
+					if (corked) {
+						writing = 0;
+						if (corked || !WRITING.compareAndSet(this, 0, 1)) return;
+						continue;
+					}
+
 					WritePromise p = peekNode();
 
 					for (; p == null; p = peekNode()) {
@@ -659,6 +1542,13 @@ class SelectorHandler implements NetHandler, Runnable {
 						if (isEmpty() || !WRITING.compareAndSet(this, 0, 1)) return;
 					}
 
+					long quota = getWriteQuota();
+
+					if (quota <= 0) {
+						yieldWrite(p);
+						return;
+					}
+
 					ByteBufferArraySupplier bs = p.supplier;
 
 					if (bs == null) {
@@ -666,42 +1556,47 @@ class SelectorHandler implements NetHandler, Runnable {
 
 						if (sch != null) {
 							if (send(p, sch)) {
-								assert p == peekNode();
-								poll();
+								pollWrite(p);
 								p.complete(null);
 								continue;
 							} else {
-								writing = 0;
-								setInterest(p, OP_WRITE);
+								yieldWrite(p);
 								return;
 							}
 						} else {
-							assert p == peekNode();
 							assert p.isDone();
-							poll();
+							pollWrite(p);
 							continue;
 						}
 					}
 
 					ByteBuffer[] buf = bs.getByteBufferArray();
+					if (p.size < 0) addPending(p, buf);
 
 					if (buf.length == 0) {
-						assert p == peekNode();
-						poll();
+						pollWrite(p);
 						if (!p.isDone()) p.complete(null);
 						continue;
 					}
 
 					assert getBufferOffset(buf) == 0;
 
+					if ((writeBatchSize != 0) && (p.getSendChannel() == null) && (p.getNext() != null)) {
+						if (writeBatch(ch, p, buf, quota)) continue;
+						yieldWrite(p);
+						return;
+					}
+
 					for (int off = 0; ; ) {
-						long i = ch.write(buf, off, buf.length - off);
+						long i = writeLimited(ch, buf, off, buf.length - off, quota);
+						if (metrics != null) metrics.written(i);
+						written(i);
 
-						if (i == 0) {
+						if ((i == 0) || (((quota -= i) <= 0) && (getBufferOffset(buf) != -1))) {
+							off = getBufferOffset(buf);
 							if (off != 0) p.releaseBuf(buf, off);
 							p.retainBuf(buf, off);
-							writing = 0;
-							setInterest(p, OP_WRITE);
+							yieldWrite(p);
 							return;
 						}
 
@@ -713,13 +1608,11 @@ class SelectorHandler implements NetHandler, Runnable {
 							RandomAccessChannel sch = p.getSendChannel();
 
 							if ((sch != null) && !send(p, sch)) {
-								writing = 0;
-								setInterest(p, OP_WRITE);
+								yieldWrite(p);
 								return;
 							}
 
-							assert p == peekNode();
-							poll();
+							pollWrite(p);
 							p.complete(null);
 							break;
 						}
@@ -731,11 +1624,107 @@ class SelectorHandler implements NetHandler, Runnable {
 			}
 		}
 
+		/**
+		 * Write the buffers of the subsequent queued promises with a single gathering write.
+		 * Returns true if all the collected buffers have been written.
+		 */
+		private boolean writeBatch(SocketChannel ch, WritePromise first, ByteBuffer[] firstBuf,
+															 long quota) throws IOException {
+			ByteBuffer[] buf = firstBuf;
+			long maxBytes = Math.min(writeBatchSize, quota);
+			int maxBufs = conf.writeBatchBuffers;
+			int np = 0;
+			int nb = 0;
+			long bytes = 0;
+
+			for (WritePromise p = first; ; ) {
+				boolean threadBuf = false;
+				ensureBatchCapacity(np + 1, nb + buf.length);
+				batch[np] = p;
+				batchBufs[np++] = buf;
+
+				for (ByteBuffer b : buf) {
+					gather[nb++] = b;
+					bytes += b.remaining();
+					threadBuf |= isWriteBuffer(b) || isSslWriteBuffer(b);
+				}
+
+				// The next supplier may reuse the thread's write buffer
+				if (threadBuf || (bytes >= maxBytes) || (nb >= maxBufs)) break;
+
+				p = p.getNext();
+				if ((p == null) || (p.getSendChannel() != null)) break;
+				ByteBufferArraySupplier s = p.supplier;
+				if (s == null) break;
+				buf = s.getByteBufferArray();
+				if (p.size < 0) addPending(p, buf);
+			}
+
+			for (int off = 0; ; ) {
+				long n = writeLimited(ch, gather, off, nb - off, quota);
+				if (metrics != null) metrics.written(n);
+				written(n);
+				off = getBufferOffset(gather, off, nb);
+				if ((off == -1) || (n == 0) || ((quota -= n) <= 0)) break;
+			}
+
+			Arrays.fill(gather, 0, nb, null);
+			boolean done = true;
+
+			for (int i = 0; i < np; i++) {
+				WritePromise p = batch[i];
+				ByteBuffer[] pb = batchBufs[i];
+				int off = getBufferOffset(pb);
+				batch[i] = null;
+				batchBufs[i] = null;
+
+				if (off == -1) {
+					if (pb.length != 0) p.releaseBuf(pb, pb.length);
+					p.releaseBufSupplier();
+
+					if (done) {
+						pollWrite(p);
+						p.complete(null);
+					} else {
+						// Complete in order, after the preceding partially written promise
+						p.supplier = EMPTY_SUPPLIER;
+					}
+				} else {
+					done = false;
+					if (off != 0) p.releaseBuf(pb, off);
+					p.retainBuf(pb, off);
+				}
+			}
+
+			return done;
+		}
+
+		private void ensureBatchCapacity(int np, int nb) {
+			if (batch == null) {
+				int n = Math.max(np, 8);
+				batch = new WritePromise[n];
+				batchBufs = new ByteBuffer[n][];
+				gather = new ByteBuffer[Math.max(nb, conf.writeBatchBuffers)];
+				return;
+			}
+
+			if (np > batch.length) {
+				batch = Arrays.copyOf(batch, np * 2);
+				batchBufs = Arrays.copyOf(batchBufs, np * 2);
+			}
+
+			if (nb > gather.length) gather = Arrays.copyOf(gather, nb * 2);
+		}
+
 		private boolean send(WritePromise p, RandomAccessChannel ch) throws IOException {
 			long off = p.getSendChannelOff();
 			long len = p.getSendChannelLen();
 			assert len > 0;
-			long n = ch.transferTo(off, len, channel());
+			long quota = getWriteQuota();
+			if (quota <= 0) return false;
+			long n = ch.transferTo(off, Math.min(len, quota), channel());
+			if (metrics != null) metrics.written(n);
+			written(n);
 
 			if (n == -1) {
 				throw new IOException("Failed to transfer " + len + " bytes at position " + off);
@@ -753,9 +1742,37 @@ class SelectorHandler implements NetHandler, Runnable {
 			}
 		}
 
+		// The number of bytes, allowed to be written now
+		private long getWriteQuota() {
+			long q = quantum;
+			if (writeRate != null) q = Math.min(q, writeRate.available());
+			if (serverWriteRate != null) q = Math.min(q, serverWriteRate.available());
+			return q;
+		}
+
+		private void written(long n) {
+			if (n <= 0) return;
+			quantum -= n;
+			if (writeRate != null) writeRate.consume(n);
+			if (serverWriteRate != null) serverWriteRate.consume(n);
+		}
+
+		// Resume the writing in the next selection or, if the rate limit is exceeded, when the
+		// tokens are available
+		private void yieldWrite(WritePromise p) {
+			writing = 0;
+			long delay = 0;
+			if (writeRate != null) delay = writeRate.delayMillis();
+			if (serverWriteRate != null) delay = Math.max(delay, serverWriteRate.delayMillis());
+
+			if (delay == 0) setInterest(p, OP_WRITE);
+			else loop.timers.schedule(() -> setInterest(p, OP_WRITE), delay, TimeUnit.MILLISECONDS);
+		}
+
 		private void setInterest(Completable<?> p, int interest) {
-			selectorRun(() -> {
+			loop.run(() -> {
 				try {
+					if ((interest == OP_READ) && readSuspended) return;
 					if (key.isValid()) key.interestOps(key.interestOps() | interest);
 				} catch (Throwable ex) {
 					p.completeExceptionally(ex);
@@ -783,27 +1800,26 @@ class SelectorHandler implements NetHandler, Runnable {
 			closeListener = listener;
 		}
 
+		@Nullable
+		@Override
+		public NetMetrics getMetrics() {
+			return metrics;
+		}
+
 		int getReadTimeout() {
-			return 0;
+			return conf.readTimeout;
 		}
 
 		int getWriteTimeout() {
-			return 0;
+			return conf.writeTimeout;
 		}
 
 		int getSendTimeout() {
-			return 0;
+			return conf.sendTimeout;
 		}
 
 		void markActive() {
-			if (inactivityTimeout != 0) lastActive = System.currentTimeMillis();
-		}
-
-		void closeIfInactive(long timeout) {
-			if (lastActive < timeout) {
-				Log.d("Closing channel due to inactivity: ", this);
-				close();
-			}
+			if (inactivityTimeout != 0) loop.markActive(this);
 		}
 
 		private void close(Throwable err) {
@@ -811,19 +1827,31 @@ class SelectorHandler implements NetHandler, Runnable {
 			if (!isOpen()) return;
 			IoUtils.close(channel());
 
-			ReadPromise r = READER.getAndSet(this, null);
+			if (server != null) {
+				SelectableNetServer s = SERVER.getAndSet(this, null);
+				if (s != null) s.connectionClosed();
+			}
+
+			ReadPromise<?> r = READER.getAndSet(this, null);
 			if (r != null) r.completeExceptionally(err);
-			clear(w -> w.completeExceptionally(err));
+			clear(w -> {
+				if (metrics != null) metrics.queued(-1);
+				w.completeExceptionally(err);
+			});
+
+			if (watermark != null) watermark.close(err);
 
 			CloseListener listener = closeListener;
 
 			if (listener != null) {
-				if (isSelectorThread()) getExecutor().execute(() -> listener.channelClosed(this));
+				if (loop.isSelectorThread()) getExecutor().execute(() -> listener.channelClosed(this));
 				else listener.channelClosed(this);
 			}
 
+			if (inactivityTimeout != 0) loop.run(() -> loop.removeIdle(this));
+
 			// Wake up selector to remove the cancelled key
-			selector.wakeup();
+			loop.wakeup();
 		}
 
 		@Nonnull
@@ -837,31 +1865,45 @@ class SelectorHandler implements NetHandler, Runnable {
 		}
 	}
 
-	private final class SelectableNetChannelWitTimeout extends SelectableNetChannel {
-		private final int readTimeout;
-		private final int writeTimeout;
-		private final int sendTimeout;
-
-		SelectableNetChannelWitTimeout(SelectionKey key, int readTimeout, int writeTimeout, int sendTimeout) {
-			super(key);
-			this.readTimeout = readTimeout;
-			this.writeTimeout = writeTimeout;
-			this.sendTimeout = sendTimeout;
-		}
-
-		@Override
-		public int getReadTimeout() {
-			return readTimeout;
-		}
-
-		@Override
-		public int getWriteTimeout() {
-			return writeTimeout;
-		}
-
-		@Override
-		public int getSendTimeout() {
-			return sendTimeout;
+	private static final class ChannelConf {
+		static final ChannelConf DEFAULT = new ChannelConf(new ChannelOpts());
+		final int readTimeout;
+		final int writeTimeout;
+		final int sendTimeout;
+		final int writeBatchSize;
+		final int writeBatchBuffers;
+		final long writeHighWatermark;
+		final long writeLowWatermark;
+		final boolean inline;
+		final long writeRateLimit;
+		final long writeRateBurst;
+		final int writeQuantum;
+
+		ChannelConf(ChannelOpts o) {
+			readTimeout = o.readTimeout;
+			writeTimeout = o.writeTimeout;
+			sendTimeout = o.sendTimeout;
+			writeBatchSize = o.writeBatchSize;
+			writeBatchBuffers = Math.max(o.writeBatchBuffers, 1);
+			writeHighWatermark = Math.max(o.writeHighWatermark, 0);
+			writeLowWatermark = (o.writeLowWatermark > 0)
+					? Math.min(o.writeLowWatermark, writeHighWatermark) : writeHighWatermark / 2;
+			inline = o.inline;
+			writeRateLimit = Math.max(o.writeRateLimit, 0);
+			writeRateBurst = Math.max(o.writeRateBurst, 0);
+			writeQuantum = Math.max(o.writeQuantum, 0);
+		}
+
+		static ChannelConf get(ChannelOpts o) {
+			ChannelConf c = new ChannelConf(o);
+			ChannelConf d = DEFAULT;
+			return ((c.readTimeout == d.readTimeout) && (c.writeTimeout == d.writeTimeout)
+					&& (c.sendTimeout == d.sendTimeout) && (c.writeBatchSize == d.writeBatchSize)
+					&& (c.writeBatchBuffers == d.writeBatchBuffers)
+					&& (c.writeHighWatermark == d.writeHighWatermark)
+					&& (c.writeLowWatermark == d.writeLowWatermark) && (c.inline == d.inline)
+					&& (c.writeRateLimit == d.writeRateLimit) && (c.writeRateBurst == d.writeRateBurst)
+					&& (c.writeQuantum == d.writeQuantum)) ? d : c;
 		}
 	}
 
@@ -888,13 +1930,62 @@ class SelectorHandler implements NetHandler, Runnable {
 		}
 	}
 
-	private static final class ReadPromise extends ChannelPromise<ByteBuffer> {
+	private static abstract class ReadPromise<T> extends ChannelPromise<T> {
+
+		abstract boolean isReleased();
+
+		// Returns the number of bytes read or -1 on end of stream
+		abstract long read(SocketChannel ch) throws IOException;
+
+		// Returns true if there is no space left in the buffers
+		abstract boolean isFull();
+
+		abstract void completeRead(boolean eos);
+
+		// Nothing has been read, the buffers are requested again on the next read
+		abstract void releaseRead();
+	}
+
+	private static final class BufferReadPromise extends ReadPromise<ByteBuffer> {
 		ByteBufferSupplier supplier;
+		private ByteBuffer buf;
 
-		ReadPromise(ByteBufferSupplier supplier) {
+		BufferReadPromise(ByteBufferSupplier supplier) {
 			this.supplier = supplier;
 		}
 
+		@Override
+		boolean isReleased() {
+			return supplier == null;
+		}
+
+		@Override
+		long read(SocketChannel ch) throws IOException {
+			return ch.read(buf = supplier.getByteBuffer());
+		}
+
+		@Override
+		boolean isFull() {
+			return !buf.hasRemaining();
+		}
+
+		@Override
+		void completeRead(boolean eos) {
+			ByteBuffer bb = buf;
+			buf = null;
+			if (eos) bb.limit(bb.position());
+			else bb.flip();
+			complete(bb);
+		}
+
+		@Override
+		void releaseRead() {
+			ByteBuffer bb = buf;
+			ByteBufferSupplier s = supplier;
+			buf = null;
+			if (s != null) s.releaseByteBuffer(bb);
+		}
+
 		void release() {
 			ByteBufferSupplier s = supplier;
 
@@ -903,10 +1994,59 @@ class SelectorHandler implements NetHandler, Runnable {
 				s.release();
 			}
 		}
+	}
 
-		void releaseBuf(ByteBuffer bb) {
-			ByteBufferSupplier s = supplier;
-			if (s != null) s.releaseByteBuffer(bb);
+	private static final class ScatterReadPromise extends ReadPromise<ByteBuffer[]> {
+		ByteBufferArraySupplier supplier;
+		private ByteBuffer[] buf;
+
+		ScatterReadPromise(ByteBufferArraySupplier supplier) {
+			this.supplier = supplier;
+		}
+
+		@Override
+		boolean isReleased() {
+			return supplier == null;
+		}
+
+		@Override
+		long read(SocketChannel ch) throws IOException {
+			return ch.read(buf = supplier.getByteBufferArray());
+		}
+
+		@Override
+		boolean isFull() {
+			return getBufferOffset(buf) == -1;
+		}
+
+		@Override
+		void completeRead(boolean eos) {
+			ByteBuffer[] bb = buf;
+			buf = null;
+
+			for (ByteBuffer b : bb) {
+				if (eos) b.limit(b.position());
+				else b.flip();
+			}
+
+			complete(bb);
+		}
+
+		@Override
+		void releaseRead() {
+			ByteBuffer[] bb = buf;
+			ByteBufferArraySupplier s = supplier;
+			buf = null;
+			if ((s != null) && (bb != null) && (bb.length != 0)) s.releaseByteBufferArray(bb);
+		}
+
+		void release() {
+			ByteBufferArraySupplier s = supplier;
+
+			if (s != null) {
+				supplier = null;
+				s.release();
+			}
 		}
 	}
 
@@ -915,6 +2055,8 @@ class SelectorHandler implements NetHandler, Runnable {
 		private static final AtomicReferenceFieldUpdater NEXT = AtomicReferenceFieldUpdater.newUpdater(WritePromise.class, WritePromise.class, "next");
 		private volatile WritePromise next;
 		ByteBufferArraySupplier supplier;
+		// The number of bytes accounted in the pending writes, -1 if not yet known
+		long size = -1;
 
 		WritePromise(ByteBufferArraySupplier supplier) {
 			this.supplier = supplier;
@@ -937,6 +2079,10 @@ class SelectorHandler implements NetHandler, Runnable {
 		}
 
 		void retainBuf(ByteBuffer[] bb, int off) {
+			for (int i = off; i < bb.length; i++) {
+				BufferLeakDetector.touch(bb[i]);
+			}
+
 			ByteBufferArraySupplier s = supplier;
 			if (s != null) supplier = s.retainByteBufferArray(bb, off);
 			assert supplier != null;
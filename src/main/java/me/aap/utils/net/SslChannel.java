@@ -1,5 +1,9 @@
 package me.aap.utils.net;
 
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.Executor;
+
 import javax.net.ssl.SSLEngine;
 
 import me.aap.utils.async.FutureSupplier;
@@ -10,6 +14,15 @@ import me.aap.utils.async.FutureSupplier;
 public interface SslChannel extends NetChannel {
 
 	static FutureSupplier<? extends SslChannel> create(NetChannel channel, SSLEngine engine) {
-		return SslChannelImpl.create(channel, engine);
+		return SslChannelImpl.create(channel, engine, null);
+	}
+
+	/**
+	 * @param handshakeExecutor runs the engine's delegated tasks, if null - the channel handler's
+	 *                          executor is used
+	 */
+	static FutureSupplier<? extends SslChannel> create(NetChannel channel, SSLEngine engine,
+																										 @Nullable Executor handshakeExecutor) {
+		return SslChannelImpl.create(channel, engine, handshakeExecutor);
 	}
 }
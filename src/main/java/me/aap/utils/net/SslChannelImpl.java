@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
@@ -21,7 +22,6 @@ import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.async.Promise;
 import me.aap.utils.concurrent.ConcurrentQueueBase;
 import me.aap.utils.function.ProgressiveResultConsumer.Completion;
-import me.aap.utils.io.IoUtils;
 import me.aap.utils.log.Log;
 
 import static me.aap.utils.async.Completed.failed;
@@ -29,6 +29,8 @@ import static me.aap.utils.concurrent.NetThread.assertSslReadBuffer;
 import static me.aap.utils.concurrent.NetThread.assertSslWriteBuffer;
 import static me.aap.utils.concurrent.NetThread.getSslReadBuffer;
 import static me.aap.utils.concurrent.NetThread.getSslWriteBuffer;
+import static me.aap.utils.concurrent.NetThread.isReadBuffer;
+import static me.aap.utils.concurrent.NetThread.isWriteBuffer;
 import static me.aap.utils.io.IoUtils.copyOfRange;
 import static me.aap.utils.io.IoUtils.emptyByteBufferArray;
 
@@ -38,28 +40,45 @@ import static me.aap.utils.io.IoUtils.emptyByteBufferArray;
 class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChannelImpl.Write> implements SslChannel {
 	private static final AtomicIntegerFieldUpdater<SslChannelImpl> READ_STATE = AtomicIntegerFieldUpdater.newUpdater(SslChannelImpl.class, "readState");
 	private static final ByteBuffer[] EMPTY_BUF_ARRAY = new ByteBuffer[0];
+	// The maximum TLS record plain text size
+	private static final int MAX_RECORD_SIZE = 16384;
+	private static final int MAX_AGGREGATE = 16;
 	private final ByteBuffer[] writeBufArray = new ByteBuffer[1];
+	// The small pending writes, wrapped together with the head write. Accessed by the head only.
+	private final Write[] aggrWrites = new Write[MAX_AGGREGATE];
+	private final ByteBuffer[][] aggrBufs = new ByteBuffer[MAX_AGGREGATE][];
 	private final NetChannel channel;
 	private final SSLEngine engine;
+	@Nullable
+	private final Executor handshakeExecutor;
+	@Nullable
+	private final WriteWatermark watermark;
 	private ByteBuffer tmpBuf;
 	private ByteBuffer retainedReadBuf;
 	private ByteBuffer retainedWriteBuf;
+	// Unwrap failure, reported by the next read
+	private SSLException readFailure;
 	// 0 - idle, 1 - reading, 2 - supplying
 	private volatile int readState;
 
-	SslChannelImpl(NetChannel channel, SSLEngine engine) {
+	SslChannelImpl(NetChannel channel, SSLEngine engine, @Nullable Executor handshakeExecutor) {
 		this.channel = channel;
 		this.engine = engine;
+		this.handshakeExecutor = handshakeExecutor;
+		// The queued plain text writes are accounted in the underlying channel's watermark
+		watermark = SelectorHandler.getWatermark(channel);
 	}
 
-	static FutureSupplier<SslChannelImpl> create(NetChannel channel, SSLEngine engine) {
+	static FutureSupplier<SslChannelImpl> create(NetChannel channel, SSLEngine engine,
+																							 @Nullable Executor handshakeExecutor) {
 		try {
 			engine.beginHandshake();
 		} catch (SSLException ex) {
+			channel.getHandler().getHandshakeStats().failed();
 			return failed(ex);
 		}
 
-		return new SslChannelImpl(channel, engine).handshake();
+		return new SslChannelImpl(channel, engine, handshakeExecutor).handshake();
 	}
 
 	Handshake handshake() {
@@ -112,6 +131,41 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 		return w;
 	}
 
+	@Override
+	public FutureSupplier<Void> write(ByteBuffer... buf) {
+		if (watermark == null) return write(() -> buf, null);
+
+		Write w = new Write(() -> buf);
+		for (ByteBuffer b : buf) {
+			w.size += b.remaining();
+		}
+
+		watermark.add(w.size);
+		offerNode(w);
+		if (peekNode() == w) w.wrap();
+		return w;
+	}
+
+	@Override
+	public boolean isWritable() {
+		return getChannel().isWritable();
+	}
+
+	@Override
+	public FutureSupplier<Void> whenWritable() {
+		return getChannel().whenWritable();
+	}
+
+	@Override
+	public void suspendRead() {
+		getChannel().suspendRead();
+	}
+
+	@Override
+	public void resumeRead() {
+		getChannel().resumeRead();
+	}
+
 	@Override
 	public boolean isOpen() {
 		return getChannel().isOpen();
@@ -123,6 +177,12 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 		getChannel().close();
 	}
 
+	@Nullable
+	@Override
+	public NetMetrics getMetrics() {
+		return getChannel().getMetrics();
+	}
+
 	@Override
 	public void setCloseListener(CloseListener listener) {
 		getChannel().setCloseListener(listener);
@@ -134,6 +194,21 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 		return "SslChannel: " + getChannel();
 	}
 
+	private static long remaining(ByteBuffer[] buf) {
+		long n = 0;
+		for (ByteBuffer b : buf) {
+			n += b.remaining();
+		}
+		return n;
+	}
+
+	private static boolean isThreadBuffer(ByteBuffer[] buf) {
+		for (ByteBuffer b : buf) {
+			if (isWriteBuffer(b) || isReadBuffer(b)) return true;
+		}
+		return false;
+	}
+
 	private static int getBufferOffset(ByteBuffer[] buf) {
 		for (int i = 0; i < buf.length; i++) {
 			if (buf[i].hasRemaining()) {
@@ -210,7 +285,7 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 
 			assert retainedReadBuf == null;
 			assertSslReadBuffer(bb);
-			retainedReadBuf = IoUtils.copyOf(bb);
+			retainedReadBuf = ByteBufferPool.copyOf(bb);
 			// Log.d("Retaining SSL read buffer ", retainedReadBuf, ". Channel: ", SslChannelImpl.this);
 			return this;
 		}
@@ -224,7 +299,7 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 
 			assert retainedWriteBuf == null;
 			assertSslWriteBuffer(bb[0]);
-			retainedWriteBuf = IoUtils.copyOf(bb[0]);
+			retainedWriteBuf = ByteBufferPool.copyOf(bb[0]);
 			// Log.d("Retaining SSL write buffer: ", retainedWriteBuf, ". Channel: ", SslChannelImpl.this);
 			return this;
 		}
@@ -235,6 +310,7 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 			if (bb == retainedReadBuf) {
 				// Log.d("Releasing retained SSL read buffer ", bb, ". Channel: ", SslChannelImpl.this);
 				retainedReadBuf = null;
+				ByteBufferPool.release(bb);
 			} else if (BuildConfig.D) {
 				assertSslReadBuffer(bb);
 			}
@@ -250,6 +326,7 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 				assert !bb[0].hasRemaining();
 				// Log.d("Releasing retained SSL write buffer ", bb[0], ". Channel: ", SslChannelImpl.this);
 				retainedWriteBuf = null;
+				ByteBufferPool.release(bb[0]);
 			} else if (BuildConfig.D) {
 				assertSslWriteBuffer(bb[0]);
 			}
@@ -270,6 +347,8 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 
 	private final class Handshake extends SslPromise<SslChannelImpl> {
 		private final ByteBuffer unwrapBuf = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		private final long startTime = System.nanoTime();
+		private final long startTimeMillis = System.currentTimeMillis();
 
 		Handshake() {
 		}
@@ -279,7 +358,20 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 			assert unwrapBuf.position() == 0;
 			assert unwrapBuf.limit() == unwrapBuf.capacity();
 			assert retainedWriteBuf == null;
-			return super.complete(value);
+			if (!super.complete(value)) return false;
+			HandshakeStats stats = getHandler().getHandshakeStats();
+			stats.completed(System.nanoTime() - startTime);
+			// A resumed session has been created by a previous handshake
+			if (engine.getUseClientMode())
+				stats.sessionResumed(engine.getSession().getCreationTime() < startTimeMillis);
+			return true;
+		}
+
+		@Override
+		public boolean completeExceptionally(@NonNull Throwable ex) {
+			if (!super.completeExceptionally(ex)) return false;
+			getHandler().getHandshakeStats().failed();
+			return true;
 		}
 
 		void handshake() {
@@ -289,12 +381,7 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 					complete(SslChannelImpl.this);
 					return;
 				case NEED_TASK:
-					for (Runnable t = engine.getDelegatedTask(); t != null;
-							 t = engine.getDelegatedTask()) {
-						t.run();
-					}
-
-					handshake();
+					runTasks();
 					return;
 				case NEED_WRAP:
 					wrap();
@@ -307,6 +394,35 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 			}
 		}
 
+		// The delegated tasks may take long, thus running them asynchronously to not stall
+		// the I/O thread. The handshake is resumed by the handler's executor.
+		private void runTasks() {
+			Executor ioExec = getHandler().getExecutor();
+			Executor exec = (handshakeExecutor != null) ? handshakeExecutor : ioExec;
+
+			try {
+				exec.execute(() -> {
+					long start = System.nanoTime();
+
+					try {
+						for (Runnable t = engine.getDelegatedTask(); t != null;
+								 t = engine.getDelegatedTask()) {
+							t.run();
+						}
+					} catch (Throwable ex) {
+						completeExceptionally(ex);
+						return;
+					}
+
+					getHandler().getHandshakeStats().taskCompleted(System.nanoTime() - start);
+					if (exec == ioExec) handshake();
+					else ioExec.execute(this::handshake);
+				});
+			} catch (Throwable ex) {
+				completeExceptionally(ex);
+			}
+		}
+
 		private void wrap() {
 			getChannel().write(this, (v, err) -> {
 				if (err != null) completeExceptionally(err);
@@ -422,12 +538,15 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 				tmpBuf.limit(limit);
 
 				if (!tmpBuf.hasRemaining()) {
-					Log.d("Releasing temporary buffer " + tmpBuf, ". Channel: ", SslChannelImpl.this);
-					tmpBuf = null;
+					releaseTmpBuffer();
+					// Unwrap the next records, if any, directly to the remaining space
+					if (dst.hasRemaining() && (retainedReadBuf != null)) unwrapRetained(dst);
 				}
 
 				dst.flip();
 				done(dst, null);
+			} else if (readFailure != null) {
+				done(null, readFailure);
 			} else if (retainedReadBuf == null) {
 				read();
 			} else {
@@ -488,16 +607,12 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 
 			try {
 				assert tmpBuf == null;
-				tmpBuf = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
-				Log.d("Unwrapping to temporary buffer " + tmpBuf, ". Channel: ", SslChannelImpl.this);
+				tmpBuf = ByteBufferPool.allocate(engine.getSession().getApplicationBufferSize());
 				result = unwrap(src, tmpBuf);
-				if (result.getStatus() != SSLEngineResult.Status.OK) {
-					Log.d("Releasing temporary buffer " + tmpBuf, ". Channel: ", SslChannelImpl.this);
-					tmpBuf = null;
-				}
+				if (result.getStatus() != SSLEngineResult.Status.OK) releaseTmpBuffer();
 			} catch (SSLException ex) {
 				Log.e(ex, "Failed to unwrap from ", src, ". Channel: ", SslChannelImpl.this);
-				tmpBuf = null;
+				releaseTmpBuffer();
 				releaseByteBuffer(src);
 				done(null, ex);
 				return;
@@ -531,6 +646,26 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 			}
 		}
 
+		private void unwrapRetained(ByteBuffer dst) {
+			ByteBuffer src = retainedReadBuf;
+
+			try {
+				unwrap(src, dst);
+			} catch (SSLException ex) {
+				// The already unwrapped bytes are returned, the failure is reported by the next read
+				Log.e(ex, "Failed to unwrap from ", src, ". Channel: ", SslChannelImpl.this);
+				readFailure = ex;
+				src.position(src.limit());
+			}
+
+			if (!src.hasRemaining()) releaseByteBuffer(src);
+		}
+
+		private void releaseTmpBuffer() {
+			ByteBufferPool.release(tmpBuf);
+			tmpBuf = null;
+		}
+
 		private void read() {
 			getChannel().read(this, (bb, err) -> {
 				if (err != null) {
@@ -569,6 +704,9 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 		private ByteBufferArraySupplier bbs;
 		volatile int state;
 		volatile Write next;
+		long size;
+		// The number of the following writes, completely wrapped with this one
+		private int aggregated;
 
 		Write(ByteBufferArraySupplier bbs) {
 			this.bbs = bbs;
@@ -580,9 +718,15 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 
 		private void write() {
 			getChannel().write(this, (v, err) -> {
-				if (err != null) completeExceptionally(err);
-				else if (state == 2) done(null);
-				else write();
+				if (err != null) {
+					Write w = this;
+					for (int n = aggregated; n > 0; n--) (w = w.getNext()).finish(err);
+					completeExceptionally(err);
+				} else if (state == 2) {
+					done(null);
+				} else {
+					write();
+				}
 			});
 		}
 
@@ -590,15 +734,22 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 		ByteBuffer[] wrapTo(ByteBuffer dst) {
 			assert peekNode() == this;
 			ByteBuffer[] src = bbs.getByteBufferArray();
+			int nf = aggregate(src);
+			ByteBuffer[] gather = (nf == 0) ? src : gather(src, nf);
 			SSLEngineResult result;
 
 			try {
-				assert getBufferOffset(src) != -1;
+				assert getBufferOffset(gather) != -1;
 				assert dst.hasRemaining();
-				result = wrap(src, dst);
-				if (result.getStatus() != SSLEngineResult.Status.OK) bbs.releaseByteBufferArray(src);
+				result = wrap(gather, dst);
+
+				if (result.getStatus() != SSLEngineResult.Status.OK) {
+					bbs.releaseByteBufferArray(src);
+					retainAggregated(0, nf);
+				}
 			} catch (SSLException ex) {
 				bbs.releaseByteBufferArray(src);
+				retainAggregated(0, nf);
 				done(ex);
 				return EMPTY_BUF_ARRAY;
 			}
@@ -614,9 +765,11 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 					if (i == -1) {
 						state = 2;
 						bbs.releaseByteBufferArray(src);
+						aggregated = releaseAggregated(nf);
 					} else {
 						if (i != 0) bbs.releaseByteBufferArray(src, i);
 						bbs = bbs.retainByteBufferArray(src, i);
+						retainAggregated(0, nf);
 					}
 
 					writeBufArray[0] = dst;
@@ -636,22 +789,109 @@ class SslChannelImpl extends ConcurrentQueueBase<SslChannelImpl.Write, SslChanne
 			}
 		}
 
-		private void done(Throwable fail) {
-			if (fail != null) {
-				if (!completeExceptionally(fail)) return;
-			} else {
-				assert retainedWriteBuf == null;
-				if (!complete(null)) return;
+		// Collect the following small writes to be wrapped into the same record
+		private int aggregate(ByteBuffer[] src) {
+			long bytes = remaining(src);
+			if ((bytes >= MAX_RECORD_SIZE) || isThreadBuffer(src)) return 0;
+			int n = 0;
+
+			for (Write w = getNext(); (w != null) && (n < MAX_AGGREGATE); w = w.getNext()) {
+				if (w.state != 0) break;
+				ByteBuffer[] b = w.bbs.getByteBufferArray();
+				aggrWrites[n] = w;
+				aggrBufs[n++] = b;
+				bytes += remaining(b);
+				// The next supplier may reuse the thread's buffer
+				if ((bytes >= MAX_RECORD_SIZE) || isThreadBuffer(b)) break;
 			}
 
-			bbs.release();
+			return n;
+		}
+
+		private ByteBuffer[] gather(ByteBuffer[] src, int nf) {
+			int len = src.length;
+			for (int i = 0; i < nf; i++) {
+				len += aggrBufs[i].length;
+			}
+
+			ByteBuffer[] gather = new ByteBuffer[len];
+			System.arraycopy(src, 0, gather, 0, src.length);
+
+			for (int i = 0, off = src.length; i < nf; i++) {
+				ByteBuffer[] b = aggrBufs[i];
+				System.arraycopy(b, 0, gather, off, b.length);
+				off += b.length;
+			}
+
+			return gather;
+		}
+
+		// Release the completely wrapped writes and retain the rest
+		private int releaseAggregated(int nf) {
+			int n = 0;
+
+			for (; n < nf; n++) {
+				ByteBuffer[] b = aggrBufs[n];
+				if (getBufferOffset(b) != -1) break;
+				Write w = aggrWrites[n];
+				if (b.length != 0) w.bbs.releaseByteBufferArray(b);
+				w.state = 2;
+				aggrWrites[n] = null;
+				aggrBufs[n] = null;
+			}
+
+			retainAggregated(n, nf);
+			return n;
+		}
+
+		private void retainAggregated(int from, int to) {
+			for (int n = from; n < to; n++) {
+				ByteBuffer[] b = aggrBufs[n];
+				Write w = aggrWrites[n];
+				int i = getBufferOffset(b);
+				aggrWrites[n] = null;
+				aggrBufs[n] = null;
+
+				if (i == -1) {
+					if (b.length != 0) w.bbs.releaseByteBufferArray(b);
+				} else {
+					if (i != 0) w.bbs.releaseByteBufferArray(b, i);
+					w.bbs = w.bbs.retainByteBufferArray(b, i);
+				}
+			}
+		}
+
+		private void done(Throwable fail) {
+			assert (fail != null) || (retainedWriteBuf == null);
+			if (!finish(fail)) return;
 
 			Write next = getNext();
 			Write w = pollNode();
 			assert w == this;
+
+			for (int n = aggregated; n > 0; n--) {
+				w = next;
+				next = w.getNext();
+				w.finish(fail);
+				Write polled = pollNode();
+				assert polled == w;
+			}
+
 			if (next != null) next.wrap();
 		}
 
+		private boolean finish(Throwable fail) {
+			if (fail != null) {
+				if (!completeExceptionally(fail)) return false;
+			} else if (!complete(null)) {
+				return false;
+			}
+
+			if ((watermark != null) && (size != 0)) watermark.remove(size);
+			bbs.release();
+			return true;
+		}
+
 		@Override
 		public Write getValue() {
 			return this;
@@ -0,0 +1,62 @@
+package me.aap.utils.net;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Limits the write rate of one or multiple channels. The bucket is refilled with the rate
+ * bytes per second up to the burst size, each written byte consumes a token.
+ *
+ * @author Andrey Pavlenko
+ */
+final class TokenBucket {
+	private static final int MIN_BURST = 16384;
+	// Wait for a reasonable amount of tokens to avoid tiny writes
+	private static final int MIN_WRITE = 4096;
+	private final long rate;
+	private final long burst;
+	private long tokens;
+	private long time = System.nanoTime();
+
+	private TokenBucket(long rate, long burst) {
+		this.rate = rate;
+		this.burst = (burst > 0) ? burst : Math.max(rate / 4, MIN_BURST);
+		tokens = this.burst;
+	}
+
+	@Nullable
+	static TokenBucket create(long rate, long burst) {
+		return (rate > 0) ? new TokenBucket(rate, burst) : null;
+	}
+
+	/**
+	 * Returns the number of the available tokens. Could be negative, if the tokens have been
+	 * consumed concurrently.
+	 */
+	synchronized long available() {
+		refill();
+		return tokens;
+	}
+
+	synchronized void consume(long n) {
+		tokens -= n;
+	}
+
+	/**
+	 * Returns the delay in milliseconds until the next write is allowed or 0 if allowed now.
+	 */
+	synchronized long delayMillis() {
+		refill();
+		if (tokens > 0) return 0;
+		long need = Math.min(burst, MIN_WRITE) - tokens;
+		return Math.max(1, need * 1000 / rate);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		long elapsed = now - time;
+		long add = (long) (elapsed * (rate / 1e9));
+		if (add <= 0) return;
+		tokens = Math.min(burst, tokens + add);
+		time = now;
+	}
+}
@@ -0,0 +1,113 @@
+package me.aap.utils.net;
+
+import androidx.annotation.Keep;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.async.Promise;
+
+import static me.aap.utils.async.Completed.completedVoid;
+import static me.aap.utils.async.Completed.failed;
+
+/**
+ * Tracks the size of the queued writes. The channel becomes not writable when the size reaches
+ * the high watermark and writable again when it drops to the low watermark.
+ *
+ * @author Andrey Pavlenko
+ */
+final class WriteWatermark {
+	private static final AtomicLongFieldUpdater<WriteWatermark> PENDING =
+			AtomicLongFieldUpdater.newUpdater(WriteWatermark.class, "pending");
+	private static final AtomicIntegerFieldUpdater<WriteWatermark> UNWRITABLE =
+			AtomicIntegerFieldUpdater.newUpdater(WriteWatermark.class, "unwritable");
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static final AtomicReferenceFieldUpdater<WriteWatermark, Promise<Void>> WAITER =
+			(AtomicReferenceFieldUpdater) AtomicReferenceFieldUpdater.newUpdater(WriteWatermark.class, Promise.class, "waiter");
+	private final long high;
+	private final long low;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile long pending;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile int unwritable;
+	@Keep
+	@SuppressWarnings("unused")
+	private volatile Promise<Void> waiter;
+	private volatile Throwable closed;
+
+	private WriteWatermark(long high, long low) {
+		this.high = high;
+		this.low = ((low > 0) && (low < high)) ? low : high / 2;
+	}
+
+	@Nullable
+	static WriteWatermark create(long high, long low) {
+		return (high > 0) ? new WriteWatermark(high, low) : null;
+	}
+
+	long getPending() {
+		return pending;
+	}
+
+	void add(long size) {
+		if (size == 0) return;
+
+		if ((PENDING.addAndGet(this, size) >= high) && UNWRITABLE.compareAndSet(this, 0, 1)) {
+			// The pending writes could have been completed concurrently
+			if ((pending <= low) && UNWRITABLE.compareAndSet(this, 1, 0)) notifyWaiter();
+		}
+	}
+
+	void remove(long size) {
+		if (size == 0) return;
+
+		if ((PENDING.addAndGet(this, -size) <= low) && (unwritable != 0)
+				&& UNWRITABLE.compareAndSet(this, 1, 0)) {
+			notifyWaiter();
+		}
+	}
+
+	boolean isWritable() {
+		return unwritable == 0;
+	}
+
+	FutureSupplier<Void> whenWritable() {
+		for (; ; ) {
+			if (unwritable == 0) return completedVoid();
+
+			Throwable err = closed;
+			if (err != null) return failed(err);
+
+			Promise<Void> w = waiter;
+
+			if (w == null) {
+				w = new Promise<>();
+				if (!WAITER.compareAndSet(this, null, w)) continue;
+			}
+
+			if (unwritable == 0) {
+				notifyWaiter();
+			} else if ((closed != null) && WAITER.compareAndSet(this, w, null)) {
+				w.completeExceptionally(closed);
+			}
+
+			return w;
+		}
+	}
+
+	void close(Throwable err) {
+		closed = err;
+		Promise<Void> w = WAITER.getAndSet(this, null);
+		if (w != null) w.completeExceptionally(err);
+	}
+
+	private void notifyWaiter() {
+		Promise<Void> w = WAITER.getAndSet(this, null);
+		if (w != null) w.complete(null);
+	}
+}
@@ -0,0 +1,217 @@
+package me.aap.utils.net.http;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.io.AsyncOutputStream;
+import me.aap.utils.io.AsyncPipe;
+import me.aap.utils.text.TextUtils;
+
+import static me.aap.utils.async.Completed.completedVoid;
+import static me.aap.utils.async.Completed.failed;
+
+/**
+ * Decodes the gzip or deflate content encoding incrementally, as the encoded bytes are written,
+ * and writes the decoded bytes to the underlying stream. A write is completed, when all the
+ * decoded bytes are written to the underlying stream, thus the underlying stream's backpressure
+ * is preserved. The memory usage is constant and does not depend on the content length.
+ * <p>
+ * On the end of stream, the content is checked for truncation and the gzip trailer (CRC32 and
+ * the decoded length) is verified. On failure, the underlying stream is closed without the end
+ * of stream and the failure is available via {@link #getFailure()}.
+ *
+ * @author Andrey Pavlenko
+ */
+final class ContentDecoder implements AsyncOutputStream {
+	private static final int BUF_SIZE = 8192;
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	private static final int TRAILER_LEN = 8;
+	private final AsyncOutputStream out;
+	private final Inflater inflater;
+	@Nullable
+	private final CRC32 crc;
+	@Nullable
+	private final byte[] trailer;
+	private byte[] in = new byte[BUF_SIZE];
+	private byte[] buf;
+	private int inLen;
+	private int trailerLen;
+	private boolean header;
+	private IOException failure;
+
+	private ContentDecoder(AsyncOutputStream out, boolean gzip) {
+		this.out = out;
+		inflater = new Inflater(gzip);
+		header = gzip;
+
+		if (gzip) {
+			crc = new CRC32();
+			trailer = new byte[TRAILER_LEN];
+		} else {
+			crc = null;
+			trailer = null;
+		}
+	}
+
+	@Nullable
+	static ContentDecoder create(CharSequence enc, AsyncOutputStream out) {
+		if (TextUtils.equals("gzip", enc)) return new ContentDecoder(out, true);
+		if (TextUtils.equals("deflate", enc)) return new ContentDecoder(out, false);
+		return null;
+	}
+
+	@Override
+	public FutureSupplier<Void> write(ByteBuffer src) {
+		int len = src.remaining();
+		if (len == 0) return completedVoid();
+
+		if (inflater.finished()) {
+			addTrailer(src, len);
+			return completedVoid();
+		}
+
+		if ((inLen + len) > in.length) {
+			byte[] b = new byte[Math.max(in.length * 2, inLen + len)];
+			System.arraycopy(in, 0, b, 0, inLen);
+			in = b;
+		}
+
+		src.get(in, inLen, len);
+		inLen += len;
+
+		if (header) {
+			int off = gzipHeaderLength(in, inLen);
+			if (off == 0) return completedVoid();
+			if (off < 0) return failed(new IOException("Invalid gzip header"));
+			header = false;
+			inflater.setInput(in, off, inLen - off);
+		} else {
+			inflater.setInput(in, 0, inLen);
+		}
+
+		return inflate();
+	}
+
+	private FutureSupplier<Void> inflate() {
+		try {
+			for (; ; ) {
+				if (inflater.finished()) {
+					int rem = inflater.getRemaining();
+					if (rem > 0) addTrailer(ByteBuffer.wrap(in, inLen - rem, rem), rem);
+					inLen = 0;
+					return completedVoid();
+				}
+
+				// An async stream may retain the buffer after the write completion
+				byte[] b = ((buf == null) || out.isAsync()) ? (buf = new byte[BUF_SIZE]) : buf;
+				int n = inflater.inflate(b);
+
+				if (n > 0) {
+					if (crc != null) crc.update(b, 0, n);
+					FutureSupplier<Void> w = out.write(ByteBuffer.wrap(b, 0, n));
+					if (!w.isDone() || w.isFailed()) return w.then(v -> inflate());
+				} else if (inflater.needsInput()) {
+					inLen = 0;
+					return completedVoid();
+				} else if (inflater.needsDictionary()) {
+					return failed(new IOException("Deflate dictionary is not supported"));
+				}
+			}
+		} catch (DataFormatException ex) {
+			return failed(new IOException("Invalid encoded content", ex));
+		}
+	}
+
+	@Override
+	public void endOfStream() {
+		failure = verify();
+		inflater.end();
+		if (failure == null) out.endOfStream();
+		else if (out instanceof AsyncPipe) ((AsyncPipe) out).close(failure);
+		else out.close();
+	}
+
+	/**
+	 * Returns the failure, detected on the end of stream, or null.
+	 */
+	@Nullable
+	public IOException getFailure() {
+		return failure;
+	}
+
+	@Override
+	public void close() {
+		inflater.end();
+		out.close();
+	}
+
+	@Override
+	public boolean isAsync() {
+		return out.isAsync();
+	}
+
+	private void addTrailer(ByteBuffer src, int len) {
+		if (trailer == null) return;
+		int n = Math.min(len, TRAILER_LEN - trailerLen);
+		src.get(trailer, trailerLen, n);
+		src.position(src.position() + len - n);
+		trailerLen += n;
+	}
+
+	@Nullable
+	private IOException verify() {
+		if (header || !inflater.finished()) return new IOException("Truncated encoded content");
+		if (crc == null) return null;
+		if (trailerLen < TRAILER_LEN) return new IOException("Truncated gzip trailer");
+		if (getIntLE(trailer, 0) != (int) crc.getValue()) return new IOException("Gzip CRC mismatch");
+		if (getIntLE(trailer, 4) != (int) inflater.getBytesWritten()) {
+			return new IOException("Gzip length mismatch");
+		}
+		return null;
+	}
+
+	private static int getIntLE(byte[] b, int off) {
+		return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) | ((b[off + 2] & 0xFF) << 16) |
+				((b[off + 3] & 0xFF) << 24);
+	}
+
+	/**
+	 * Returns the length of the gzip header, 0 if incomplete or -1 if invalid.
+	 */
+	private static int gzipHeaderLength(byte[] b, int len) {
+		if (len < 10) return 0;
+		if (((b[0] & 0xFF) != 0x1F) || ((b[1] & 0xFF) != 0x8B) || (b[2] != 8)) return -1;
+		int flags = b[3];
+		int off = 10;
+
+		if ((flags & FEXTRA) != 0) {
+			if ((off + 2) > len) return 0;
+			off += 2 + ((b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8));
+		}
+		if ((flags & FNAME) != 0) {
+			for (; ; off++) {
+				if (off >= len) return 0;
+				if (b[off] == 0) break;
+			}
+			off++;
+		}
+		if ((flags & FCOMMENT) != 0) {
+			for (; ; off++) {
+				if (off >= len) return 0;
+				if (b[off] == 0) break;
+			}
+			off++;
+		}
+		if ((flags & FHCRC) != 0) off += 2;
+		return (off > len) ? 0 : off;
+	}
+}
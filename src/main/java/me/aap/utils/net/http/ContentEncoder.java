@@ -0,0 +1,241 @@
+package me.aap.utils.net.http;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response payloads with the gzip or deflate content encoding. The payloads, smaller
+ * than the threshold, are not compressed. The Deflaters are pooled and the compressed bytes of the
+ * payloads, having a content key, are cached in a LRU cache, limited by the total size.
+ *
+ * @author Andrey Pavlenko
+ */
+public final class ContentEncoder {
+	private static final int POOL_SIZE = 8;
+	private static final int GZIP_HEADER_LEN = 10;
+	private static final int GZIP_TRAILER_LEN = 8;
+	private static final ArrayDeque<Deflater> gzipPool = new ArrayDeque<>(POOL_SIZE);
+	private static final ArrayDeque<Deflater> deflatePool = new ArrayDeque<>(POOL_SIZE);
+	private static final LinkedHashMap<Key, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private static volatile int threshold = 1024;
+	private static volatile int level = Deflater.DEFAULT_COMPRESSION;
+	private static long cacheSize = 4 * 1024 * 1024;
+	private static long cachedBytes;
+
+	private ContentEncoder() {
+	}
+
+	public static int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * The minimal payload length to be compressed.
+	 */
+	public static void setThreshold(int threshold) {
+		ContentEncoder.threshold = threshold;
+	}
+
+	public static int getLevel() {
+		return level;
+	}
+
+	public static void setLevel(int level) {
+		ContentEncoder.level = level;
+	}
+
+	public static long getCacheSize() {
+		synchronized (cache) {
+			return cacheSize;
+		}
+	}
+
+	/**
+	 * The maximum total length of the cached compressed payloads. 0 disables the cache.
+	 */
+	public static void setCacheSize(long cacheSize) {
+		synchronized (cache) {
+			ContentEncoder.cacheSize = cacheSize;
+			trimCache();
+		}
+	}
+
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+			cachedBytes = 0;
+		}
+	}
+
+	/**
+	 * Returns the compressed payload or null if the payload is smaller than the threshold or the
+	 * compressed payload is not smaller than the original one. The payload position is not changed.
+	 *
+	 * @param contentKey the content identity, e.g. the file path and the modification time.
+	 *                   If not null, the compressed bytes are cached by this key.
+	 */
+	@Nullable
+	public static ByteBuffer encode(ByteBuffer payload, ContentEncoding enc,
+																	@Nullable Object contentKey) {
+		int len = payload.remaining();
+		if (len < threshold) return null;
+
+		if (contentKey != null) {
+			Key key = new Key(contentKey, enc);
+			byte[] cached;
+
+			synchronized (cache) {
+				cached = cache.get(key);
+			}
+
+			if (cached != null) return ByteBuffer.wrap(cached);
+
+			ByteBuffer b = encode(payload, enc);
+			if ((b == null) || (b.remaining() > cacheSize)) return b;
+
+			cached = (b.remaining() == b.capacity()) ? b.array() : Arrays.copyOf(b.array(), b.limit());
+
+			synchronized (cache) {
+				byte[] old = cache.put(key, cached);
+				if (old != null) cachedBytes -= old.length;
+				cachedBytes += cached.length;
+				trimCache();
+			}
+
+			return ByteBuffer.wrap(cached);
+		}
+
+		return encode(payload, enc);
+	}
+
+	@Nullable
+	private static ByteBuffer encode(ByteBuffer payload, ContentEncoding enc) {
+		byte[] in;
+		int off;
+		int len = payload.remaining();
+
+		if (payload.hasArray()) {
+			in = payload.array();
+			off = payload.arrayOffset() + payload.position();
+		} else {
+			in = new byte[len];
+			off = 0;
+			payload.duplicate().get(in);
+		}
+
+		boolean gzip = (enc == ContentEncoding.GZIP);
+		byte[] out = new byte[Math.max(len / 2, 64)];
+		int n = 0;
+
+		if (gzip) {
+			out[0] = 0x1F;
+			out[1] = (byte) 0x8B;
+			out[2] = 8; // Deflate
+			out[9] = (byte) 0xFF; // Unknown OS
+			n = GZIP_HEADER_LEN;
+		}
+
+		Deflater d = getDeflater(gzip);
+
+		try {
+			d.setInput(in, off, len);
+			d.finish();
+
+			while (!d.finished()) {
+				if (n >= len) return null;
+				if (n == out.length) out = Arrays.copyOf(out, Math.min(out.length * 2, len + 64));
+				n += d.deflate(out, n, out.length - n);
+			}
+		} finally {
+			releaseDeflater(d, gzip);
+		}
+
+		if (gzip) {
+			if ((n + GZIP_TRAILER_LEN) >= len) return null;
+			if ((n + GZIP_TRAILER_LEN) > out.length) out = Arrays.copyOf(out, n + GZIP_TRAILER_LEN);
+			CRC32 crc = new CRC32();
+			crc.update(in, off, len);
+			n = putIntLE(out, n, (int) crc.getValue());
+			n = putIntLE(out, n, len);
+		} else if (n >= len) {
+			return null;
+		}
+
+		return ByteBuffer.wrap(out, 0, n);
+	}
+
+	private static int putIntLE(byte[] b, int off, int v) {
+		b[off++] = (byte) v;
+		b[off++] = (byte) (v >> 8);
+		b[off++] = (byte) (v >> 16);
+		b[off++] = (byte) (v >> 24);
+		return off;
+	}
+
+	private static Deflater getDeflater(boolean gzip) {
+		ArrayDeque<Deflater> pool = gzip ? gzipPool : deflatePool;
+		Deflater d;
+
+		synchronized (pool) {
+			d = pool.pollFirst();
+		}
+
+		if (d == null) d = new Deflater(level, gzip);
+		else d.setLevel(level);
+		return d;
+	}
+
+	private static void releaseDeflater(Deflater d, boolean gzip) {
+		ArrayDeque<Deflater> pool = gzip ? gzipPool : deflatePool;
+		d.reset();
+
+		synchronized (pool) {
+			if (pool.size() < POOL_SIZE) {
+				pool.addFirst(d);
+				return;
+			}
+		}
+
+		d.end();
+	}
+
+	private static void trimCache() {
+		for (Iterator<Map.Entry<Key, byte[]>> it = cache.entrySet().iterator();
+				 (cachedBytes > cacheSize) && it.hasNext(); ) {
+			cachedBytes -= it.next().getValue().length;
+			it.remove();
+		}
+	}
+
+	private static final class Key {
+		final Object contentKey;
+		final ContentEncoding enc;
+
+		Key(Object contentKey, ContentEncoding enc) {
+			this.contentKey = contentKey;
+			this.enc = enc;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return (enc == k.enc) && contentKey.equals(k.contentKey);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(contentKey, enc);
+		}
+	}
+}
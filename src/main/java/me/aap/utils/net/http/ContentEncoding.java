@@ -0,0 +1,62 @@
+package me.aap.utils.net.http;
+
+import androidx.annotation.Nullable;
+
+/**
+ * The content encodings, supported by {@link ContentEncoder}.
+ *
+ * @author Andrey Pavlenko
+ */
+public enum ContentEncoding {
+	GZIP("gzip"),
+	DEFLATE("deflate");
+
+	private final String name;
+
+	ContentEncoding(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Select the encoding, accepted by the client. Gzip is preferred, the encodings with q=0 are
+	 * excluded. Returns null if none of the supported encodings is accepted.
+	 */
+	@Nullable
+	public static ContentEncoding negotiate(@Nullable CharSequence acceptEncoding) {
+		if (acceptEncoding == null) return null;
+		boolean gzip = false;
+		boolean deflate = false;
+		boolean any = false;
+
+		for (String e : acceptEncoding.toString().split(",")) {
+			int idx = e.indexOf(';');
+			String name = ((idx == -1) ? e : e.substring(0, idx)).trim();
+			if ((idx != -1) && isZeroQ(e.substring(idx + 1))) continue;
+
+			if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) gzip = true;
+			else if (name.equalsIgnoreCase("deflate")) deflate = true;
+			else if (name.equals("*")) any = true;
+		}
+
+		return (gzip || any) ? GZIP : deflate ? DEFLATE : null;
+	}
+
+	private static boolean isZeroQ(String params) {
+		for (String p : params.split(";")) {
+			p = p.trim();
+			if (!p.startsWith("q=")) continue;
+
+			try {
+				return Float.parseFloat(p.substring(2).trim()) == 0;
+			} catch (NumberFormatException ex) {
+				return false;
+			}
+		}
+
+		return false;
+	}
+}
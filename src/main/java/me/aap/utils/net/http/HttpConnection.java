@@ -15,16 +15,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import me.aap.utils.app.App;
 import me.aap.utils.app.NetApp;
 import me.aap.utils.async.FutureSupplier;
-import me.aap.utils.collection.CacheMap;
 import me.aap.utils.collection.CollectionUtils;
 import me.aap.utils.function.BiFunction;
+import me.aap.utils.function.Cancellable;
 import me.aap.utils.function.Consumer;
 import me.aap.utils.function.Function;
 import me.aap.utils.log.Log;
@@ -49,10 +48,11 @@ import static me.aap.utils.net.http.HttpStatusCode.TEMPORARY_REDIRECT;
  * @author Andrey Pavlenko
  */
 public class HttpConnection extends HttpResponseEncoder implements HttpResponseHandler, Closeable {
-	private static final CacheMap<ConnectionId, FutureSupplier<HttpConnection>> cache = new CacheMap<>(30);
 	private static final Map<URL, URL> permRedirects = new ConcurrentHashMap<>();
 	private final NetChannel channel;
 	private final Deque<BiFunction<HttpResponse, Throwable, FutureSupplier<?>>> receiveQueue = new ConcurrentLinkedDeque<>();
+	@Nullable
+	private volatile HttpConnectionPool.Pooled pooled;
 
 	public HttpConnection(NetChannel channel) {
 		this.channel = channel;
@@ -77,6 +77,13 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 		public int maxRedirects = 10;
 		public int maxReconnects = 10;
 		public int responseTimeout;
+		// The maximum number of the keep-alive connections per host
+		public int maxConnectionsPerHost = 6;
+		// Close the keep-alive connections, idle for the specified number of seconds. 0 - never
+		public int idleTimeout = 60;
+		// The maximum number of the requests, sent over a connection without waiting for the
+		// responses. Pipelining is used only when the connections limit is reached. 1 - disabled
+		public int maxPipelinedRequests = 1;
 
 		public void url(String url) {
 			try {
@@ -106,23 +113,15 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 		o.ssl = id.ssl;
 
 		if (o.keepAlive) {
-			f = cache.compute(id, (k, v) -> {
-				if ((v != null) && !v.isFailed()) {
-					HttpConnection c = v.peek();
-					if ((c == null) || c.isOpen()) return v;
-				}
-
-				return connect(o);
-			});
+			f = HttpConnectionPool.instance.checkout(id, o);
 		} else {
-			f = connect(o);
+			f = open(o);
 		}
 
-		assert f != null;
 		f.onCompletion((c, err) -> sendRequest(c, o, err, consumer));
 	}
 
-	private static FutureSupplier<HttpConnection> connect(Opts o) {
+	static FutureSupplier<HttpConnection> open(Opts o) {
 		NetHandler handler = o.handler;
 
 		if (handler == null) {
@@ -151,12 +150,13 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 			consumer.apply(null, err);
 		} else if (consumer instanceof Req) {
 			Req req = (Req) consumer;
+			req.conn = c;
 			c.sendRequest(req, req);
 		} else {
 			Req req = new Req(o, consumer);
+			req.conn = c;
 			if (o.responseTimeout != 0) {
-				req.timer = c.getChannel().getHandler().getScheduler()
-						.schedule(req, o.responseTimeout, TimeUnit.SECONDS);
+				req.timer = c.getChannel().getHandler().schedule(req, o.responseTimeout, TimeUnit.SECONDS);
 			}
 			c.sendRequest(req, req);
 		}
@@ -182,6 +182,8 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 					f.thenRun(() -> close(new ConnectionClosedException("Close response received")));
 					return FutureSupplier.noOp();
 				} else {
+					HttpConnectionPool.Pooled p = pooled;
+					if (p != null) f.onSuccess(r -> p.release());
 					return f;
 				}
 			} catch (Throwable ex) {
@@ -202,6 +204,10 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 		return getChannel().isOpen();
 	}
 
+	void setPooled(HttpConnectionPool.Pooled pooled) {
+		this.pooled = pooled;
+	}
+
 	@Override
 	public void close() {
 		close(new ConnectionClosedException());
@@ -209,6 +215,12 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 
 	private void close(Throwable cause) {
 		getChannel().close();
+		HttpConnectionPool.Pooled p = pooled;
+
+		if (p != null) {
+			pooled = null;
+			p.closed();
+		}
 
 		while (!receiveQueue.isEmpty()) {
 			for (Iterator<BiFunction<HttpResponse, Throwable, FutureSupplier<?>>> it = receiveQueue.iterator(); it.hasNext(); ) {
@@ -264,7 +276,7 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 		return true;
 	}
 
-	private static final class ConnectionId {
+	static final class ConnectionId {
 		final int port;
 		final String host;
 		final boolean ssl;
@@ -300,7 +312,9 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 			BiFunction<HttpResponse, Throwable, FutureSupplier<?>>, Runnable {
 		private final Opts o;
 		private final BiFunction<HttpResponse, Throwable, FutureSupplier<?>> consumer;
-		private ScheduledFuture<?> timer;
+		private Cancellable timer;
+		volatile HttpConnection conn;
+		private volatile boolean timedOut;
 
 		public Req(Opts o, BiFunction<HttpResponse, Throwable, FutureSupplier<?>> consumer) {
 			this.o = o;
@@ -352,6 +366,8 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 
 		@Override
 		public FutureSupplier<?> apply(HttpResponse resp, Throwable err) {
+			if (timedOut) return completedVoid();
+
 			if (err != null) {
 				if ((o.maxReconnects > 0) && (err instanceof IOException)) {
 					Log.d("Trying to reconnect(", o.maxReconnects, "): ", o.url);
@@ -417,20 +433,25 @@ public class HttpConnection extends HttpResponseEncoder implements HttpResponseH
 
 		@Override
 		public void run() {
-			ScheduledFuture<?> t = timer;
+			Cancellable t = timer;
 
 			if (t != null) {
 				timer = null;
-				apply(null, new TimeoutException("Request timeout: " + o.url));
+				timedOut = true;
+				TimeoutException ex = new TimeoutException("Request timeout: " + o.url);
+				consumer.apply(null, ex);
+				// The connection is blocked by the response, that has not been received
+				HttpConnection c = conn;
+				if (c != null) c.close(ex);
 			}
 		}
 
 		private void cancelTimer() {
-			ScheduledFuture<?> t = timer;
+			Cancellable t = timer;
 
 			if (t != null) {
 				timer = null;
-				t.cancel(false);
+				t.cancel();
 			}
 		}
 	}
@@ -1,23 +1,39 @@
 package me.aap.utils.net.http;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import androidx.annotation.Nullable;
 
 import me.aap.utils.net.NetChannel;
 import me.aap.utils.net.NetServer;
 
 /**
+ * Dispatches the requests to the handlers, registered for the path patterns. A pattern is either
+ * an exact path, e.g. /vfs, or contains the parameter segments, e.g. /files/{id}/meta, with the
+ * values available via {@link HttpRequest#getPathParam(String)}, or ends with the prefix segment,
+ * e.g. /static/*, that matches any path with this prefix.
+ *
  * @author Andrey Pavlenko
  */
 public class HttpConnectionHandler extends HttpRequestEncoder implements NetServer.ConnectionHandler {
-	private final Map<CharSequence, HttpRequestHandler.Provider> handlers = new ConcurrentHashMap<>();
+	private final HttpRouter router = new HttpRouter();
 
 	public HttpRequestHandler.Provider addHandler(String path, HttpRequestHandler.Provider provider) {
-		return handlers.put(path, provider);
+		return addHandler(path, null, provider);
+	}
+
+	/**
+	 * Add the handler for the path pattern and the method or any method, if the method is null.
+	 */
+	public HttpRequestHandler.Provider addHandler(String path, @Nullable HttpMethod method,
+																								HttpRequestHandler.Provider provider) {
+		return router.add(path, method, provider);
 	}
 
 	public HttpRequestHandler.Provider removeHandler(String path) {
-		return handlers.remove(path);
+		return removeHandler(path, null);
+	}
+
+	public HttpRequestHandler.Provider removeHandler(String path, @Nullable HttpMethod method) {
+		return router.remove(path, method);
 	}
 
 	@Override
@@ -27,7 +43,6 @@ public class HttpConnectionHandler extends HttpRequestEncoder implements NetServ
 
 	@Override
 	protected HttpRequestHandler getHandler(CharSequence path, HttpMethod method, HttpVersion version) {
-		HttpRequestHandler.Provider p = handlers.get(path);
-		return (p != null) ? p.getHandler(path, method, version) : null;
+		return router.getHandler(path, method, version);
 	}
 }
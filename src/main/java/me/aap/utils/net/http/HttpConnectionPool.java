@@ -0,0 +1,269 @@
+package me.aap.utils.net.http;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.async.Promise;
+import me.aap.utils.collection.CollectionUtils;
+import me.aap.utils.function.Cancellable;
+import me.aap.utils.net.http.HttpConnection.ConnectionId;
+import me.aap.utils.net.http.HttpConnection.Opts;
+
+import static me.aap.utils.async.Completed.completed;
+
+/**
+ * Keep-alive connections of {@link HttpConnection}, grouped by host. A request is sent over an
+ * idle connection, if available, otherwise a new connection is opened, if the number of the host
+ * connections is less than {@link Opts#maxConnectionsPerHost}. When the limit is reached, the
+ * request is pipelined over the least loaded connection, if allowed by
+ * {@link Opts#maxPipelinedRequests}, or waits until a connection is released.
+ * <p>
+ * A connection is released when the response payload is consumed. The idle connections are
+ * closed after {@link Opts#idleTimeout} seconds.
+ *
+ * @author Andrey Pavlenko
+ */
+final class HttpConnectionPool {
+	static final HttpConnectionPool instance = new HttpConnectionPool();
+	private final Map<ConnectionId, Host> hosts = new ConcurrentHashMap<>();
+
+	FutureSupplier<HttpConnection> checkout(ConnectionId id, Opts o) {
+		for (; ; ) {
+			Host h = CollectionUtils.computeIfAbsent(hosts, id, Host::new);
+			FutureSupplier<HttpConnection> f = h.checkout(o);
+			if (f != null) return f;
+		}
+	}
+
+	/**
+	 * Returns the number of the pooled connections to the host, including the busy ones.
+	 */
+	int getConnectionCount(ConnectionId id) {
+		Host h = hosts.get(id);
+		if (h == null) return 0;
+
+		synchronized (h) {
+			return h.connections.size();
+		}
+	}
+
+	static final class Pooled {
+		final Host host;
+		final HttpConnection conn;
+		final int idleTimeout;
+		// The following fields are guarded by the host lock
+		int inFlight = 1;
+		long idleSince;
+		Cancellable idleTimer;
+
+		Pooled(Host host, HttpConnection conn, int idleTimeout) {
+			this.host = host;
+			this.conn = conn;
+			this.idleTimeout = idleTimeout;
+		}
+
+		void release() {
+			host.release(this);
+		}
+
+		void closed() {
+			host.closed(this);
+		}
+
+		boolean isHealthy(long now) {
+			if (!conn.isOpen()) return false;
+			return (inFlight != 0) || (idleTimeout <= 0) || ((now - idleSince) < idleTimeout * 1000L);
+		}
+
+		void checkout() {
+			inFlight++;
+			Cancellable t = idleTimer;
+
+			if (t != null) {
+				idleTimer = null;
+				t.cancel();
+			}
+		}
+	}
+
+	private static final class Waiter extends Promise<HttpConnection> {
+		final Opts o;
+
+		Waiter(Opts o) {
+			this.o = o;
+		}
+	}
+
+	private final class Host {
+		final ConnectionId id;
+		final List<Pooled> connections = new ArrayList<>();
+		final Deque<Waiter> waiters = new ArrayDeque<>();
+		int connecting;
+		boolean removed;
+
+		Host(ConnectionId id) {
+			this.id = id;
+		}
+
+		@Nullable
+		FutureSupplier<HttpConnection> checkout(Opts o) {
+			List<Pooled> stale = null;
+			Pooled conn = null;
+			Waiter wait = null;
+			long now = System.currentTimeMillis();
+
+			synchronized (this) {
+				if (removed) return null;
+				Pooled best = null;
+
+				for (Iterator<Pooled> it = connections.iterator(); it.hasNext(); ) {
+					Pooled p = it.next();
+
+					if (!p.isHealthy(now)) {
+						it.remove();
+						if (stale == null) stale = new ArrayList<>();
+						stale.add(p);
+					} else if ((p.inFlight < o.maxPipelinedRequests) &&
+							((best == null) || (p.inFlight < best.inFlight))) {
+						best = p;
+					}
+				}
+
+				// Prefer an idle connection, then a new one, then pipelining
+				if ((best != null) && (best.inFlight == 0)) {
+					conn = best;
+				} else if ((connections.size() + connecting) < o.maxConnectionsPerHost) {
+					connecting++;
+				} else if (best != null) {
+					conn = best;
+				} else {
+					waiters.addLast(wait = new Waiter(o));
+				}
+
+				if (conn != null) conn.checkout();
+			}
+
+			if (stale != null) {
+				for (Pooled p : stale) {
+					p.conn.close();
+				}
+			}
+
+			if (conn != null) return completed(conn.conn);
+			if (wait != null) return wait;
+			return connect(o);
+		}
+
+		private FutureSupplier<HttpConnection> connect(Opts o) {
+			Promise<HttpConnection> p = new Promise<>();
+
+			HttpConnection.open(o).onCompletion((c, err) -> {
+				if (err == null) {
+					synchronized (this) {
+						connecting--;
+						Pooled pooled = new Pooled(this, c, o.idleTimeout);
+						connections.add(pooled);
+						c.setPooled(pooled);
+					}
+
+					p.complete(c);
+				} else {
+					connectionFailed(err);
+					p.completeExceptionally(err);
+				}
+			});
+
+			return p;
+		}
+
+		private void connectionFailed(Throwable err) {
+			List<Waiter> failed = null;
+
+			synchronized (this) {
+				connecting--;
+
+				// Nothing to wait for - fail the waiters, the requests will reconnect
+				if (connections.isEmpty() && (connecting == 0)) {
+					failed = new ArrayList<>(waiters);
+					waiters.clear();
+					remove();
+				}
+			}
+
+			if (failed != null) {
+				for (Waiter w : failed) {
+					w.completeExceptionally(err);
+				}
+			}
+		}
+
+		void release(Pooled p) {
+			Waiter w = null;
+
+			synchronized (this) {
+				p.inFlight--;
+				if (!p.conn.isOpen() || !connections.contains(p)) return;
+				w = waiters.pollFirst();
+
+				if (w != null) {
+					p.inFlight++;
+				} else if ((p.inFlight == 0) && (p.idleTimeout > 0)) {
+					p.idleSince = System.currentTimeMillis();
+					p.idleTimer = p.conn.getChannel().getHandler().schedule(() -> evict(p),
+							p.idleTimeout, TimeUnit.SECONDS);
+				}
+			}
+
+			if (w != null) w.complete(p.conn);
+		}
+
+		void closed(Pooled p) {
+			Waiter w = null;
+
+			synchronized (this) {
+				if (!connections.remove(p)) return;
+				Cancellable t = p.idleTimer;
+
+				if (t != null) {
+					p.idleTimer = null;
+					t.cancel();
+				}
+
+				Waiter first = waiters.peekFirst();
+
+				if ((first != null) &&
+						((connections.size() + connecting) < first.o.maxConnectionsPerHost)) {
+					w = waiters.pollFirst();
+					connecting++;
+				} else if (connections.isEmpty() && (connecting == 0) && waiters.isEmpty()) {
+					remove();
+				}
+			}
+
+			if (w != null) connect(w.o).onCompletion(w::complete);
+		}
+
+		private void evict(Pooled p) {
+			synchronized (this) {
+				if ((p.inFlight != 0) || (p.idleTimer == null)) return;
+				p.idleTimer = null;
+			}
+
+			p.conn.close();
+		}
+
+		private void remove() {
+			removed = true;
+			hosts.remove(id, this);
+		}
+	}
+}
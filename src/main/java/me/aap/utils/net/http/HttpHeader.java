@@ -24,6 +24,7 @@ public enum HttpHeader {
 	LOCATION("Location"),
 	TRANSFER_ENCODING("Transfer-Encoding", "chunked"),
 	USER_AGENT("User-Agent", "Java/" + System.getProperty("java.version")),
+	VARY("Vary", "Accept-Encoding"),
 	;
 	private final String name;
 	private final String value;
@@ -10,6 +10,7 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
 import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.function.BiConsumer;
 import me.aap.utils.function.BiFunction;
 import me.aap.utils.io.AsyncInputStream;
 import me.aap.utils.io.AsyncOutputStream;
@@ -36,6 +37,22 @@ public interface HttpMessage {
 	@NonNull
 	CharSequence getHeaders();
 
+	/**
+	 * Returns the value of the first header with the specified name. The name is case-insensitive.
+	 */
+	@Nullable
+	CharSequence getHeader(CharSequence name);
+
+	@Nullable
+	default CharSequence getHeader(HttpHeader h) {
+		return getHeader(h.getName());
+	}
+
+	/**
+	 * Calls the consumer for each header name and value, in the order of appearance.
+	 */
+	void forEachHeader(BiConsumer<CharSequence, CharSequence> consumer);
+
 	@Nullable
 	CharSequence getContentType();
 
@@ -80,11 +97,29 @@ public interface HttpMessage {
 		return writePayload(AsyncOutputStream.wrapOutputStream(out));
 	}
 
-	FutureSupplier<?> writePayload(AsyncOutputStream out);
+	default FutureSupplier<?> writePayload(AsyncOutputStream out) {
+		return writePayload(out, false);
+	}
+
+	/**
+	 * Write the payload to the stream as it's received, without buffering the whole payload. The
+	 * next portion of the payload is read from the channel, when the previous write is completed.
+	 * The chunked transfer encoding is always decoded, the content encoding (gzip or deflate) -
+	 * if {@code decode} is true.
+	 */
+	FutureSupplier<?> writePayload(AsyncOutputStream out, boolean decode);
 
 	default AsyncInputStream readPayload() {
+		return readPayload(false);
+	}
+
+	/**
+	 * Returns a stream, that reads the payload as it's received. The channel is not read until the
+	 * stream consumer reads the previously received bytes.
+	 */
+	default AsyncInputStream readPayload(boolean decode) {
 		AsyncPipe pipe = new AsyncPipe(true);
-		writePayload(pipe).onFailure(pipe::close);
+		writePayload(pipe, decode).onFailure(pipe::close);
 		return pipe;
 	}
 
@@ -5,12 +5,14 @@ import androidx.annotation.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
 
 import me.aap.utils.BuildConfig;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.async.Promise;
+import me.aap.utils.function.BiConsumer;
 import me.aap.utils.function.BiFunction;
 import me.aap.utils.function.ProgressiveResultConsumer.Completion;
 import me.aap.utils.io.AsyncOutputStream;
@@ -48,6 +50,10 @@ abstract class HttpMessageBase implements HttpMessage {
 	int contentTypeStart = -1;
 	int contentEncodingStart = -1;
 	int transferEncodingStart = -1;
+	// Name offset, name length, value offset, value length and name hash of each header.
+	// The offsets are relative to headerStart.
+	private int[] headerIndex;
+	private int headerCount;
 
 
 	HttpMessageBase(HttpVersion version, ByteBuffer buf, int headerStart) {
@@ -177,8 +183,27 @@ abstract class HttpMessageBase implements HttpMessage {
 	}
 
 	@Override
-	public FutureSupplier<?> writePayload(AsyncOutputStream out) {
+	public FutureSupplier<?> writePayload(AsyncOutputStream out, boolean decode) {
 		checkReleased();
+
+		if (decode) {
+			CharSequence enc = getContentEncoding();
+
+			if (enc != null) {
+				ContentDecoder d = ContentDecoder.create(enc, out);
+				if (d == null) return failed(new IOException("Unsupported content encoding: " + enc));
+				// The decoder fails on the end of stream, if the encoded content is truncated
+				return writeRawPayload(d).then(v -> {
+					IOException err = d.getFailure();
+					return (err == null) ? completedNull() : failed(err);
+				});
+			}
+		}
+
+		return writeRawPayload(out);
+	}
+
+	private FutureSupplier<?> writeRawPayload(AsyncOutputStream out) {
 		long len = getContentLength();
 
 		if (len <= 0) {
@@ -203,10 +228,11 @@ abstract class HttpMessageBase implements HttpMessage {
 		releaseBuf();
 
 		if (available > 0) {
-			FutureSupplier<Void> w = out.write(out.isAsync() ? IoUtils.copyOf(payload) : payload);
-			if (available == len) return w.thenRun(out::endOfStream);
+			AsyncOutputStream o = out;
+			FutureSupplier<Void> w = o.write(o.isAsync() ? IoUtils.copyOf(payload) : payload);
+			if (available == len) return w.thenRun(o::endOfStream);
 			return w.then(v -> {
-				WritePayloadPromise p = new WritePayloadPromise(out, len - available);
+				WritePayloadPromise p = new WritePayloadPromise(o, len - available);
 				getChannel().read(p, p);
 				return p;
 			});
@@ -288,6 +314,58 @@ abstract class HttpMessageBase implements HttpMessage {
 		}
 	}
 
+	@Nullable
+	@Override
+	public CharSequence getHeader(CharSequence name) {
+		checkReleased();
+		int len = name.length();
+		int hash = 0;
+
+		for (int i = 0; i < len; i++) {
+			hash = 31 * hash + HttpUtils.toLowerCase(name.charAt(i));
+		}
+
+		int[] idx = headerIndex;
+
+		for (int i = 0, n = headerCount * 5; i < n; i += 5) {
+			if ((idx[i + 4] != hash) || (idx[i + 1] != len)) continue;
+
+			for (int c = 0, off = headerStart + idx[i]; ; c++) {
+				if (c == len) return new AsciiSeq(buf, headerStart + idx[i + 2], idx[i + 3]);
+				if (HttpUtils.toLowerCase(buf.get(off + c)) != HttpUtils.toLowerCase(name.charAt(c)))
+					break;
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public void forEachHeader(BiConsumer<CharSequence, CharSequence> consumer) {
+		checkReleased();
+		int[] idx = headerIndex;
+
+		for (int i = 0, n = headerCount * 5; i < n; i += 5) {
+			consumer.accept(new AsciiSeq(buf, headerStart + idx[i], idx[i + 1]),
+					new AsciiSeq(buf, headerStart + idx[i + 2], idx[i + 3]));
+		}
+	}
+
+	void addHeader(int nameStart, int nameLen, int valueStart, int valueLen, int hash) {
+		int[] idx = headerIndex;
+		int i = headerCount * 5;
+
+		if (idx == null) idx = headerIndex = new int[40];
+		else if (i == idx.length) idx = headerIndex = Arrays.copyOf(idx, i << 1);
+
+		idx[i] = nameStart - headerStart;
+		idx[i + 1] = nameLen;
+		idx[i + 2] = valueStart - headerStart;
+		idx[i + 3] = valueLen;
+		idx[i + 4] = hash;
+		headerCount++;
+	}
+
 	@Nullable
 	CharSequence getHeaderValue(int valueStart) {
 		checkReleased();
@@ -477,17 +555,21 @@ abstract class HttpMessageBase implements HttpMessage {
 
 				if (bb.hasRemaining()) {
 					lenBuf.clear();
-					lenBuf.put(bb);
+					lenBuf.put(bb).flip();
 				} else {
 					lenBuf.limit(0);
 				}
 
-				getChannel().read(this, this);
+				readMore();
 			} catch (Throwable ex) {
 				consumer.apply(null, ex).thenComplete(this);
 			}
 		}
 
+		protected void readMore() {
+			getChannel().read(this, this);
+		}
+
 		@Override
 		public void onCompletion(ByteBuffer result, Throwable fail) {
 			if (fail != null) {
@@ -583,10 +665,15 @@ abstract class HttpMessageBase implements HttpMessage {
 				assert w.isDone();
 				assert !bb.hasRemaining();
 				bb.limit(limit);
-				return !w.isFailed();
+				if (!w.isFailed()) return true;
+				completeExceptionally(new IOException("Failed to write payload", w.getFailure()));
+				return false;
 			}
 
-			if (writer.isFailed()) return false;
+			if (writer.isFailed()) {
+				completeExceptionally(new IOException("Failed to write payload", writer.getFailure()));
+				return false;
+			}
 
 			ByteBuffer src = copyOfRange(bb, bb.position(), bb.position() + len);
 			bb.position(bb.position() + len);
@@ -594,6 +681,27 @@ abstract class HttpMessageBase implements HttpMessage {
 			return true;
 		}
 
+		@Override
+		protected void readMore() {
+			if (writer.isDone()) {
+				if (writer.isFailed()) {
+					completeExceptionally(new IOException("Failed to write payload", writer.getFailure()));
+				} else {
+					super.readMore();
+				}
+
+				return;
+			}
+
+			// Do not read more, until the previously read chunks are written. The write could be
+			// completed while consuming the next chunk, thus the read is submitted to the executor
+			// to not overwrite the read buffer, that is being consumed.
+			writer.onCompletion((v, err) -> {
+				if (err != null) completeExceptionally(new IOException("Failed to write payload", err));
+				else getChannel().getHandler().getExecutor().execute(() -> super.readMore());
+			});
+		}
+
 		@Override
 		protected ByteBuffer getPayload() {
 			return emptyByteBuffer();
@@ -1,5 +1,7 @@
 package me.aap.utils.net.http;
 
+import androidx.annotation.Nullable;
+
 import java.io.OutputStream;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
@@ -18,7 +20,9 @@ import static java.nio.charset.StandardCharsets.US_ASCII;
 import static me.aap.utils.concurrent.NetThread.isWriteBuffer;
 import static me.aap.utils.io.IoUtils.copyOfRange;
 import static me.aap.utils.io.IoUtils.emptyByteBufferArray;
+import static me.aap.utils.net.http.HttpHeader.CONTENT_ENCODING;
 import static me.aap.utils.net.http.HttpHeader.CONTENT_LENGTH;
+import static me.aap.utils.net.http.HttpHeader.VARY;
 import static me.aap.utils.net.http.HttpVersion.HTTP_1_1;
 import static me.aap.utils.text.TextUtils.getNumberOfDigits;
 
@@ -241,6 +245,33 @@ class HttpMessageBuilder implements HttpRequestBuilder, HttpResponseBuilder {
 		return new ByteBuffer[]{buf, payload};
 	}
 
+	@Override
+	public ByteBuffer[] build(ByteBuffer payload, @Nullable ContentEncoding enc,
+														@Nullable Object contentKey) {
+		if (enc != null) {
+			ByteBuffer encoded = ContentEncoder.encode(payload, enc, contentKey);
+			addHeader(VARY);
+
+			if (encoded != null) {
+				addHeader(CONTENT_ENCODING, enc.getName());
+				payload = encoded;
+			}
+		}
+
+		return build(payload);
+	}
+
+	@Override
+	public <E extends Throwable> ByteBuffer[] build(CheckedConsumer<OutputStream, E> payloadWriter,
+																									@Nullable ContentEncoding enc) throws E {
+		if (enc == null) return build(payloadWriter);
+		ByteBufferOutputStream s = new ByteBufferOutputStream(ByteBuffer.allocate(defaultCapacity));
+		payloadWriter.accept(s);
+		ByteBuffer payload = s.getBuffer();
+		payload.flip();
+		return build(payload, enc, null);
+	}
+
 	@Override
 	public <E extends Throwable> ByteBuffer[] build(CheckedConsumer<OutputStream, E> payloadWriter) throws E {
 		ensureCapacity(CONTENT_LENGTH.getNameLength() + INT_PLACEHOLDER.length + 6);
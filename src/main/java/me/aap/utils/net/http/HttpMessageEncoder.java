@@ -7,11 +7,11 @@ import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.concurrent.NetThread;
 import me.aap.utils.function.Function;
 import me.aap.utils.log.Log;
+import me.aap.utils.net.ByteBufferPool;
 import me.aap.utils.net.ByteBufferSupplier;
 import me.aap.utils.net.NetChannel;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
-import static me.aap.utils.io.IoUtils.copyOfRange;
 import static me.aap.utils.io.IoUtils.emptyByteBuffer;
 
 /**
@@ -168,6 +168,33 @@ abstract class HttpMessageEncoder<M extends HttpMessage> implements ByteBufferSu
 		return (start != end) ? -start : Integer.MIN_VALUE;
 	}
 
+	/**
+	 * Record the offsets of the header line, ending at lineEnd, that is the position of '\n'.
+	 */
+	static void indexHeader(HttpMessageBase m, ByteBuffer buf, int lineStart, int lineEnd) {
+		int hash = 0;
+		int colon = lineStart;
+
+		for (; colon < lineEnd; colon++) {
+			byte c = buf.get(colon);
+			if (c == ':') break;
+			if ((c == ' ') || (c == '\t')) return; // Invalid name or obsolete line folding
+			hash = 31 * hash + HttpUtils.toLowerCase(c);
+		}
+
+		if ((colon == lineStart) || (colon == lineEnd)) return;
+
+		int valueStart = colon + 1;
+		int valueEnd = lineEnd;
+		byte c;
+		while ((valueStart < valueEnd) && (((c = buf.get(valueStart)) == ' ') || (c == '\t')))
+			valueStart++;
+		while ((valueEnd > valueStart) &&
+				(((c = buf.get(valueEnd - 1)) == ' ') || (c == '\t') || (c == '\r'))) valueEnd--;
+
+		m.addHeader(lineStart, colon - lineStart, valueStart, valueEnd - valueStart, hash);
+	}
+
 	static int headerMatch(byte[] header, ByteBuffer buf, int start, int end) {
 		byte c;
 
@@ -201,15 +228,35 @@ abstract class HttpMessageEncoder<M extends HttpMessage> implements ByteBufferSu
 	}
 
 	ByteBufferSupplier retainBuf(ByteBuffer buf, int start, int end) {
-		ByteBuffer b = copyOfRange(buf, start, end);
-		// Log.d("Retaining buffer: ", b);
-
-		return () -> {
-			b.position(0);
-			ByteBuffer bb = NetThread.getReadBuffer();
-			if (bb.remaining() < b.remaining()) bb = ByteBuffer.allocate(getMaxLen());
-			bb.put(b);
-			return bb;
+		ByteBuffer copy = ByteBufferPool.allocate(end - start);
+		ByteBuffer src = buf.duplicate();
+		src.position(start).limit(end);
+		copy.put(src).flip();
+		// Log.d("Retaining buffer: ", copy);
+
+		return new ByteBufferSupplier() {
+			ByteBuffer b = copy;
+
+			@Override
+			public ByteBuffer getByteBuffer() {
+				ByteBuffer b = this.b;
+				assert b != null;
+				b.position(0);
+				ByteBuffer bb = NetThread.getReadBuffer();
+				if (bb.remaining() < b.remaining()) bb = ByteBuffer.allocate(getMaxLen());
+				bb.put(b);
+				return bb;
+			}
+
+			@Override
+			public void release() {
+				ByteBuffer b = this.b;
+
+				if (b != null) {
+					this.b = null;
+					ByteBufferPool.release(b);
+				}
+			}
 		};
 	}
 
@@ -269,10 +316,12 @@ abstract class HttpMessageEncoder<M extends HttpMessage> implements ByteBufferSu
 
 			result.onCompletion((r, err) -> {
 				if (err != null) {
+					if (bbs != null) bbs.release();
 					onFailure(channel, err);
 				} else if (bbs != null) {
 					assert (m.buf == bb) || !m.buf.hasRemaining();
 					ByteBuffer b = bbs.getByteBuffer();
+					bbs.release();
 					b.position(0).limit(remain);
 					read(channel, b, null);
 				} else if (channel.isOpen()) {
@@ -22,4 +22,13 @@ public interface HttpRequest extends HttpMessage {
 
 	@Nullable
 	Range getRange();
+
+	@Nullable
+	CharSequence getAcceptEncoding();
+
+	/**
+	 * Returns the value of the path parameter, declared in the route pattern as {name}.
+	 */
+	@Nullable
+	CharSequence getPathParam(String name);
 }
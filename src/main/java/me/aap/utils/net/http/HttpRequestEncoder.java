@@ -20,6 +20,7 @@ import static java.nio.charset.StandardCharsets.US_ASCII;
  * @author Andrey Pavlenko
  */
 public abstract class HttpRequestEncoder extends HttpMessageEncoder<HttpRequest> {
+	private static final byte[] H_ACCEPT_ENCODING = "cCcCeEpPtT--eEnNcCoOdDiInNgG".getBytes(US_ASCII);
 	private static final byte[] H_RANGE = "aAnNgGeE".getBytes(US_ASCII);
 
 	@Nullable
@@ -162,10 +163,25 @@ public abstract class HttpRequestEncoder extends HttpMessageEncoder<HttpRequest>
 
 		loop:
 		for (int i = off; i < end; ) {
+			int lineStart = i;
+
 			switch (buf.get(i)) {
+				case 'A':
+				case 'a':
+					int value = headerMatch(H_ACCEPT_ENCODING, buf, i + 1, end);
+
+					if (value < 0) {
+						if (value == Integer.MIN_VALUE) break loop;
+						i = -value;
+						req.acceptEncodingStart = (i - req.headerStart);
+						break;
+					}
+
+					i = value;
+					break;
 				case 'C':
 				case 'c':
-					int value = encodeHeaderC(req, buf, i, end);
+					value = encodeHeaderC(req, buf, i, end);
 
 					if (value < 0) {
 						if (value == Integer.MIN_VALUE) break loop;
@@ -204,6 +220,7 @@ public abstract class HttpRequestEncoder extends HttpMessageEncoder<HttpRequest>
 
 			for (; i < end; i++) {
 				if (buf.get(i) != '\n') continue;
+				indexHeader(req, buf, lineStart, i);
 
 				if (i < (end - 1)) {
 					if (buf.get(i + 1) != '\n') {
@@ -256,7 +273,7 @@ public abstract class HttpRequestEncoder extends HttpMessageEncoder<HttpRequest>
 		err.write(channel);
 	}
 
-	private static final class Req extends HttpMessageBase implements HttpRequest, CharSequence {
+	static final class Req extends HttpMessageBase implements HttpRequest, CharSequence {
 		final NetChannel channel;
 		final HttpMethod method;
 		int uriStart;
@@ -264,6 +281,9 @@ public abstract class HttpRequestEncoder extends HttpMessageEncoder<HttpRequest>
 		final int pathLen;
 		final int hash;
 		int rangeStart = -1;
+		int acceptEncodingStart = -1;
+		private String[] paramNames;
+		private int[] paramBounds;
 
 		public Req(NetChannel channel, HttpVersion version, HttpMethod method, ByteBuffer buf, int uriStart, int uriLen,
 							 int pathLen, int hash, int headerStart) {
@@ -289,6 +309,33 @@ public abstract class HttpRequestEncoder extends HttpMessageEncoder<HttpRequest>
 			return (rangeStart == -1) ? null : Range.parse(buf, headerStart + rangeStart, headerEnd);
 		}
 
+		@Nullable
+		@Override
+		public CharSequence getAcceptEncoding() {
+			return getHeaderValue(acceptEncodingStart);
+		}
+
+		@Nullable
+		@Override
+		public CharSequence getPathParam(String name) {
+			checkReleased();
+			String[] names = paramNames;
+			if (names == null) return null;
+
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) {
+					return new AsciiSeq(buf, uriStart + paramBounds[2 * i], paramBounds[2 * i + 1]);
+				}
+			}
+
+			return null;
+		}
+
+		void setPathParams(String[] names, int[] bounds) {
+			paramNames = names;
+			paramBounds = bounds;
+		}
+
 		@Override
 		public boolean equals(Object o) {
 			checkReleased();
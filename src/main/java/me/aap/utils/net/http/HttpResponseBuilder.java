@@ -1,5 +1,7 @@
 package me.aap.utils.net.http;
 
+import androidx.annotation.Nullable;
+
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
@@ -35,4 +37,25 @@ public interface HttpResponseBuilder extends HttpHeaderBuilder {
 	ByteBuffer[] build(ByteBuffer payload);
 
 	<E extends Throwable> ByteBuffer[] build(CheckedConsumer<OutputStream, E> payloadWriter) throws E;
+
+	/**
+	 * Build the response with the payload, compressed with the specified encoding. If the encoding
+	 * is null or the payload is smaller than {@link ContentEncoder#getThreshold()}, the payload is
+	 * sent as is.
+	 *
+	 * @param enc the encoding, negotiated with {@link ContentEncoding#negotiate(CharSequence)}.
+	 */
+	default ByteBuffer[] build(ByteBuffer payload, @Nullable ContentEncoding enc) {
+		return build(payload, enc, null);
+	}
+
+	/**
+	 * Same as {@link #build(ByteBuffer, ContentEncoding)}, but the compressed payload is cached by
+	 * the content key. The key must uniquely identify the payload content, e.g. a file path with
+	 * the modification time.
+	 */
+	ByteBuffer[] build(ByteBuffer payload, @Nullable ContentEncoding enc, @Nullable Object contentKey);
+
+	<E extends Throwable> ByteBuffer[] build(CheckedConsumer<OutputStream, E> payloadWriter,
+																					 @Nullable ContentEncoding enc) throws E;
 }
@@ -127,6 +127,8 @@ public abstract class HttpResponseEncoder extends HttpMessageEncoder<HttpRespons
 
 		loop:
 		for (int i = off; i < end; ) {
+			int lineStart = i;
+
 			switch (buf.get(i)) {
 				case 'C':
 				case 'c':
@@ -182,6 +184,7 @@ public abstract class HttpResponseEncoder extends HttpMessageEncoder<HttpRespons
 
 			for (; i < end; i++) {
 				if (buf.get(i) != '\n') continue;
+				indexHeader(resp, buf, lineStart, i);
 
 				if (i < (end - 1)) {
 					if (buf.get(i + 1) != '\n') {
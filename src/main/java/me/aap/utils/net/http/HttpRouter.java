@@ -0,0 +1,259 @@
+package me.aap.utils.net.http;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Routes requests to the handler providers by the request path. The routes are compiled into a
+ * trie of the path segments, that is matched against the request buffer bytes, without hashing
+ * and copying the path. The trie is rebuilt on each route modification and replaced atomically.
+ * <p>
+ * The route pattern segments are either static, or parameters - {name}, matching any non-empty
+ * segment, or the trailing * - matching any path, starting with the pattern prefix. Static
+ * segments take precedence over parameters and parameters over prefixes. A route, registered
+ * for a specific method, takes precedence over the route for any method.
+ *
+ * @author Andrey Pavlenko
+ */
+final class HttpRouter {
+	private static final int ANY = HttpMethod.values().length;
+	private final Map<Key, HttpRequestHandler.Provider> routes = new LinkedHashMap<>();
+	private volatile Node root = new Node();
+
+	synchronized HttpRequestHandler.Provider add(String pattern, @Nullable HttpMethod method,
+																							 HttpRequestHandler.Provider provider) {
+		Node r = compile();
+		r.add(pattern, method, provider); // Fails on invalid pattern, before the routes are modified
+		HttpRequestHandler.Provider prev = routes.put(new Key(pattern, method), provider);
+		root = r;
+		return prev;
+	}
+
+	synchronized HttpRequestHandler.Provider remove(String pattern, @Nullable HttpMethod method) {
+		HttpRequestHandler.Provider prev = routes.remove(new Key(pattern, method));
+		if (prev != null) root = compile();
+		return prev;
+	}
+
+	@Nullable
+	HttpRequestHandler getHandler(CharSequence path, HttpMethod method, HttpVersion version) {
+		Route r;
+
+		if (path instanceof HttpRequestEncoder.Req) {
+			HttpRequestEncoder.Req req = (HttpRequestEncoder.Req) path;
+			r = match(req.buf, req.uriStart, req.pathLen, method);
+			if (r == null) return null;
+			if (r.paramNames != null)
+				req.setPathParams(r.paramNames, r.paramBounds(req.buf, req.uriStart, req.pathLen));
+		} else {
+			byte[] b = path.toString().getBytes(US_ASCII);
+			r = match(ByteBuffer.wrap(b), 0, b.length, method);
+			if (r == null) return null;
+		}
+
+		return r.provider.getHandler(path, method, version);
+	}
+
+	@Nullable
+	private Route match(ByteBuffer buf, int off, int len, HttpMethod method) {
+		if ((len == 0) || (buf.get(off) != '/')) return null;
+		return root.match(buf, off, off + len, method.ordinal());
+	}
+
+	private Node compile() {
+		Node r = new Node();
+		for (Map.Entry<Key, HttpRequestHandler.Provider> e : routes.entrySet()) {
+			r.add(e.getKey().pattern, e.getKey().method, e.getValue());
+		}
+		return r;
+	}
+
+	private static final class Node {
+		private static final byte[][] NO_NAMES = new byte[0][];
+		private static final Node[] NO_NODES = new Node[0];
+		byte[][] names = NO_NAMES;
+		Node[] children = NO_NODES;
+		Node param;
+		Route[] exact;
+		Route[] prefix;
+
+		void add(String pattern, @Nullable HttpMethod method, HttpRequestHandler.Provider provider) {
+			if (!pattern.startsWith("/"))
+				throw new IllegalArgumentException("Route pattern must start with '/': " + pattern);
+
+			String[] segments = pattern.substring(1).split("/", -1);
+			List<String> paramNames = null;
+			List<Integer> paramSegments = null;
+			boolean isPrefix = false;
+			Node n = this;
+
+			for (int i = 0; i < segments.length; i++) {
+				String s = segments[i];
+
+				if (s.equals("*")) {
+					if (i != segments.length - 1)
+						throw new IllegalArgumentException("'*' must be the last segment: " + pattern);
+					isPrefix = true;
+				} else if (s.startsWith("{") && s.endsWith("}") && (s.length() > 2)) {
+					if (paramNames == null) {
+						paramNames = new ArrayList<>();
+						paramSegments = new ArrayList<>();
+					}
+
+					paramNames.add(s.substring(1, s.length() - 1));
+					paramSegments.add(i);
+					if (n.param == null) n.param = new Node();
+					n = n.param;
+				} else {
+					n = n.child(s.getBytes(US_ASCII));
+				}
+			}
+
+			Route r = new Route(provider, paramNames, paramSegments);
+			int idx = (method == null) ? ANY : method.ordinal();
+
+			if (isPrefix) {
+				if (n.prefix == null) n.prefix = new Route[ANY + 1];
+				n.prefix[idx] = r;
+			} else {
+				if (n.exact == null) n.exact = new Route[ANY + 1];
+				n.exact[idx] = r;
+			}
+		}
+
+		private Node child(byte[] name) {
+			for (int i = 0; i < names.length; i++) {
+				if (Arrays.equals(names[i], name)) return children[i];
+			}
+
+			Node c = new Node();
+			names = Arrays.copyOf(names, names.length + 1);
+			children = Arrays.copyOf(children, children.length + 1);
+			names[names.length - 1] = name;
+			children[children.length - 1] = c;
+			return c;
+		}
+
+		/**
+		 * The path at off is either empty or starts with '/'.
+		 */
+		@Nullable
+		Route match(ByteBuffer buf, int off, int end, int method) {
+			if (off == end) {
+				Route r = get(exact, method);
+				return (r != null) ? r : get(prefix, method);
+			}
+
+			int start = off + 1;
+			int segEnd = start;
+			while ((segEnd < end) && (buf.get(segEnd) != '/')) segEnd++;
+			int len = segEnd - start;
+
+			for (int i = 0; i < names.length; i++) {
+				byte[] name = names[i];
+				if ((name.length != len) || !equals(name, buf, start)) continue;
+				Route r = children[i].match(buf, segEnd, end, method);
+				if (r != null) return r;
+				break;
+			}
+
+			if ((param != null) && (len != 0)) {
+				Route r = param.match(buf, segEnd, end, method);
+				if (r != null) return r;
+			}
+
+			return get(prefix, method);
+		}
+
+		private static boolean equals(byte[] name, ByteBuffer buf, int off) {
+			for (int i = 0; i < name.length; i++) {
+				if (name[i] != buf.get(off + i)) return false;
+			}
+			return true;
+		}
+
+		@Nullable
+		private static Route get(@Nullable Route[] routes, int method) {
+			if (routes == null) return null;
+			Route r = routes[method];
+			return (r != null) ? r : routes[ANY];
+		}
+	}
+
+	private static final class Route {
+		final HttpRequestHandler.Provider provider;
+		final String[] paramNames;
+		final int[] paramSegments;
+
+		Route(HttpRequestHandler.Provider provider, @Nullable List<String> paramNames,
+					@Nullable List<Integer> paramSegments) {
+			this.provider = provider;
+
+			if (paramNames == null) {
+				this.paramNames = null;
+				this.paramSegments = null;
+			} else {
+				this.paramNames = paramNames.toArray(new String[0]);
+				this.paramSegments = new int[paramSegments.size()];
+				for (int i = 0; i < this.paramSegments.length; i++) {
+					this.paramSegments[i] = paramSegments.get(i);
+				}
+			}
+		}
+
+		/**
+		 * Returns the parameters offsets, relative to the path start, and lengths.
+		 */
+		int[] paramBounds(ByteBuffer buf, int off, int len) {
+			int[] bounds = new int[paramSegments.length * 2];
+			int end = off + len;
+			int start = off + 1;
+
+			for (int i = start, seg = 0, p = 0; (i <= end) && (p < paramSegments.length); i++) {
+				if ((i != end) && (buf.get(i) != '/')) continue;
+
+				if (seg == paramSegments[p]) {
+					bounds[2 * p] = start - off;
+					bounds[2 * p + 1] = i - start;
+					p++;
+				}
+
+				seg++;
+				start = i + 1;
+			}
+
+			return bounds;
+		}
+	}
+
+	private static final class Key {
+		final String pattern;
+		final HttpMethod method;
+
+		Key(String pattern, @Nullable HttpMethod method) {
+			this.pattern = pattern;
+			this.method = method;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return (method == k.method) && pattern.equals(k.pattern);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * pattern.hashCode() + ((method == null) ? 0 : method.hashCode());
+		}
+	}
+}
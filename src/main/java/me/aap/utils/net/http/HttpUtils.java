@@ -81,6 +81,10 @@ class HttpUtils {
 		return -1;
 	}
 
+	static int toLowerCase(int c) {
+		return ((c >= 'A') && (c <= 'Z')) ? (c + ('a' - 'A')) : c;
+	}
+
 	private static class HexTable {
 		static final long[] table = {
 				-1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
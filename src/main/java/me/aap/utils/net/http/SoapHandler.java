@@ -1,5 +1,7 @@
 package me.aap.utils.net.http;
 
+import androidx.annotation.Nullable;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -58,10 +60,12 @@ public class SoapHandler implements HttpRequestHandler {
 		}
 
 		HttpVersion version = req.getVersion();
-		return req.getPayload((payload, err) -> handleMessage(channel, version, payload, err));
+		ContentEncoding enc = ContentEncoding.negotiate(req.getAcceptEncoding());
+		return req.getPayload((payload, err) -> handleMessage(channel, version, enc, payload, err));
 	}
 
 	private FutureSupplier<Void> handleMessage(NetChannel channel, HttpVersion version,
+																						 @Nullable ContentEncoding enc,
 																						 ByteBuffer payload, Throwable err) {
 		if (err != null) {
 			Log.e(err, "Failed to get payload");
@@ -105,14 +109,15 @@ public class SoapHandler implements HttpRequestHandler {
 		}
 
 		try {
-			return handleMessage(channel, version, doc, body);
+			return handleMessage(channel, version, enc, doc, body);
 		} catch (Exception ex) {
 			Log.e(ex, "Failed to handle message");
 			return ServerError.instance.write(channel);
 		}
 	}
 
-	private FutureSupplier<Void> handleMessage(NetChannel channel, HttpVersion version, Document reqDoc, Element reqBody) throws Exception {
+	private FutureSupplier<Void> handleMessage(NetChannel channel, HttpVersion version, @Nullable ContentEncoding enc,
+																						 Document reqDoc, Element reqBody) throws Exception {
 		Document respDoc = docBuilder.newDocument();
 		Element envelope = respDoc.createElementNS(SOAP_NS, "s:Envelope");
 		Element respBody = respDoc.createElementNS(SOAP_NS, "s:Body");
@@ -143,7 +148,7 @@ public class SoapHandler implements HttpRequestHandler {
 			b.addHeader(CONTENT_TYPE, "text/xml; charset=\"utf-8\"");
 
 			try {
-				ByteBuffer[] resp = b.build(os -> writeXml(respDoc, os));
+				ByteBuffer[] resp = b.build(os -> writeXml(respDoc, os), enc);
 				maxLen = Math.max(maxLen, resp[resp.length - 1].remaining());
 //				Log.d("Sending response:\n", new String(resp.array(), resp.arrayOffset(), resp.remaining(), UTF_8));
 				channel.write(resp);
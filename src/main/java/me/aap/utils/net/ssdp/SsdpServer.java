@@ -1,6 +1,8 @@
 package me.aap.utils.net.ssdp;
 
 
+import android.os.Build;
+
 import androidx.annotation.Nullable;
 
 import java.io.Closeable;
@@ -8,18 +10,25 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 
 import me.aap.utils.app.App;
+import me.aap.utils.app.NetApp;
 import me.aap.utils.function.BooleanSupplier;
 import me.aap.utils.function.Consumer;
 import me.aap.utils.function.Function;
 import me.aap.utils.log.Log;
+import me.aap.utils.net.NetDatagramChannel;
+import me.aap.utils.net.NetHandler;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.util.concurrent.TimeUnit.MINUTES;
@@ -29,13 +38,19 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  */
 public class SsdpServer implements Closeable {
 	public static final String DEVICE_MEDIASERVER = "MediaServer";
+	private static final String GROUP = "239.255.255.250";
+	private static final int PORT = 1900;
 	private final String serverName;
 	private final String deviceName;
 	private final String uuid;
 	private final ScheduledExecutorService scheduler;
 	private final Function<URI, URI> location;
 	private final BooleanSupplier isSuspended;
+	@Nullable
+	private final NetHandler handler;
 	private volatile MulticastSocket socket;
+	private volatile NetDatagramChannel channel;
+	private Future<?> notifyTask;
 	private OkContent ok;
 	private NotifyContent notify;
 
@@ -51,6 +66,10 @@ public class SsdpServer implements Closeable {
 		public ScheduledExecutorService scheduler;
 		@Nullable
 		public BooleanSupplier isSuspended;
+		// If not specified, the NetApp's handler is used. Without a handler, or before Android 7.0,
+		// the server runs in a dedicated thread.
+		@Nullable
+		public NetHandler handler;
 
 		private void init() {
 			if (serverName == null) serverName = "SsdpServer";
@@ -58,6 +77,11 @@ public class SsdpServer implements Closeable {
 			if (uuid == null) uuid = UUID.fromString(serverName + location.apply(null)).toString();
 			if (scheduler == null) scheduler = App.get().getScheduler();
 			if (isSuspended == null) isSuspended = () -> false;
+
+			if (handler == null) {
+				App app = App.get();
+				if (app instanceof NetApp) handler = ((NetApp) app).getNetHandler();
+			}
 		}
 	}
 
@@ -71,6 +95,7 @@ public class SsdpServer implements Closeable {
 		this.scheduler = o.scheduler;
 		this.location = o.location;
 		this.isSuspended = o.isSuspended;
+		this.handler = o.handler;
 	}
 
 	public SsdpServer(String serverName, String deviceName, String uuid,
@@ -82,12 +107,36 @@ public class SsdpServer implements Closeable {
 		this.scheduler = scheduler;
 		this.location = location;
 		this.isSuspended = isSuspended;
+		this.handler = null;
 	}
 
 	public synchronized void start() throws IOException {
-		if (socket != null) return;
-		final MulticastSocket socket = new MulticastSocket(1900);
-		socket.joinGroup(InetAddress.getByName("239.255.255.250"));
+		if ((socket != null) || (channel != null)) return;
+
+		if ((handler != null) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)) {
+			InetAddress group = InetAddress.getByName(GROUP);
+
+			try {
+				channel = handler.bindDatagram(o -> {
+					o.port = PORT;
+					o.multicastGroup = group;
+					o.handler = this::handle;
+				}).get();
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				throw new IOException(cause);
+			} catch (InterruptedException ex) {
+				throw new IOException(ex);
+			}
+
+			notifyTask = scheduler.scheduleWithFixedDelay(this::sendNotify, 0, 1, MINUTES);
+			Log.d("SSDP Server started");
+			return;
+		}
+
+		final MulticastSocket socket = new MulticastSocket(PORT);
+		socket.joinGroup(InetAddress.getByName(GROUP));
 		this.socket = socket;
 
 		new Thread() {
@@ -117,6 +166,17 @@ public class SsdpServer implements Closeable {
 	}
 
 	public synchronized void stop() {
+		NetDatagramChannel ch = channel;
+
+		if (ch != null) {
+			notifyTask.cancel(false);
+			sendByebye();
+			ch.close();
+			channel = null;
+			notifyTask = null;
+			Log.d("SSDP Server stopped");
+		}
+
 		if (socket == null) return;
 		socket.close();
 		socket = null;
@@ -131,7 +191,7 @@ public class SsdpServer implements Closeable {
 			cnt = notify = new NotifyContent();
 		}
 
-		sendMsg(cnt.content);
+		sendMsg(cnt);
 	}
 
 	private void sendByebye() {
@@ -141,7 +201,25 @@ public class SsdpServer implements Closeable {
 				"USN: uuid:%1$s::urn:schemas-upnp-org:device:%2$s:1\r\n" +
 				"NT: urn:schemas-upnp-org:device:%2$s:1\r\n\r\n";
 		byte[] data = String.format(str, uuid, deviceName).getBytes(US_ASCII);
-		sendMsg(data);
+		NetDatagramChannel ch = channel;
+
+		if (ch != null) {
+			ch.send(ByteBuffer.wrap(data), new InetSocketAddress(GROUP, PORT))
+					.onFailure(err -> Log.e(err, "Failed to send SSDP message"));
+		} else {
+			sendMsg(data);
+		}
+	}
+
+	private void sendMsg(Content cnt) {
+		NetDatagramChannel ch = channel;
+
+		if (ch != null) {
+			if (isDebugEnabled()) Log.d("Sending SSDP message:\n", new String(cnt.content, US_ASCII));
+			ch.send(cnt.buf, cnt.target()).onFailure(err -> Log.e(err, "Failed to send SSDP message"));
+		} else {
+			sendMsg(cnt.content);
+		}
 	}
 
 	private void sendMsg(byte[] data) {
@@ -165,10 +243,28 @@ public class SsdpServer implements Closeable {
 	}
 
 	public boolean isRunning() {
+		NetDatagramChannel ch = channel;
+		if (ch != null) return ch.isOpen();
 		MulticastSocket s = socket;
 		return (s != null) && !s.isClosed();
 	}
 
+	private void handle(NetDatagramChannel ch, ByteBuffer req, SocketAddress from) {
+		if (isSuspended.getAsBoolean()) return;
+		OkContent cnt = ok;
+
+		if ((cnt == null) || !cnt.isValid()) {
+			cnt = ok = new OkContent();
+		}
+
+		if (isDebugEnabled()) {
+			Log.d("SSDP request received:\n", US_ASCII.decode(req));
+			Log.d("Sending SSDP response:\n", new String(cnt.content, US_ASCII));
+		}
+
+		ch.send(cnt.buf, from).onFailure(err -> Log.e(err, "Failed to send SSDP response"));
+	}
+
 	private void handle(MulticastSocket socket, DatagramPacket pkt) {
 		if (isSuspended.getAsBoolean()) return;
 		OkContent cnt = ok;
@@ -200,10 +296,18 @@ public class SsdpServer implements Closeable {
 	private abstract class Content {
 		final URI uri;
 		final byte[] content;
+		final ByteBuffer buf;
+		private SocketAddress target;
 
 		Content() {
 			uri = location.apply(null);
 			content = createContent(uuid, uri.toString());
+			buf = ByteBuffer.wrap(content).asReadOnlyBuffer();
+		}
+
+		SocketAddress target() {
+			SocketAddress t = target;
+			return (t != null) ? t : (target = new InetSocketAddress(GROUP, PORT));
 		}
 
 		abstract byte[] createContent(String uuid, String location);
@@ -19,6 +19,7 @@ import java.util.UUID;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
@@ -31,6 +32,8 @@ import static me.aap.utils.text.TextUtils.toHexString;
  */
 @SuppressWarnings("unused")
 public class SecurityUtils {
+	private static final int CLIENT_SESSION_CACHE_SIZE = 128;
+	private static final int CLIENT_SESSION_TIMEOUT = 3600;
 
 	public static MessageDigest sha256Digest() {
 		try {
@@ -302,6 +305,20 @@ public class SecurityUtils {
 		}
 	}
 
+	/**
+	 * Configure the cache of the client SSL sessions. The sessions are cached by the peer host and
+	 * port, passed to {@link #createClientSslEngine(String, int)}, and are resumed on subsequent
+	 * connections to the same peer.
+	 *
+	 * @param maxSize    the maximum number of cached sessions, 0 - unlimited
+	 * @param timeoutSec the session time to live in seconds, 0 - unlimited
+	 */
+	public static void setClientSessionCache(int maxSize, int timeoutSec) {
+		SSLSessionContext sc = ClientContextHolder.context.getClientSessionContext();
+		sc.setSessionCacheSize(maxSize);
+		sc.setSessionTimeout(timeoutSec);
+	}
+
 	public static SSLEngine createServerSslEngine() {
 		try {
 			SSLEngine eng = ServerContextHolder.context.createSSLEngine();
@@ -321,6 +338,9 @@ public class SecurityUtils {
 			try {
 				ctx = SSLContext.getInstance("TLS");
 				ctx.init(null, new TrustManager[]{InsecureTrustManager.instance}, null);
+				SSLSessionContext sc = ctx.getClientSessionContext();
+				sc.setSessionCacheSize(CLIENT_SESSION_CACHE_SIZE);
+				sc.setSessionTimeout(CLIENT_SESSION_TIMEOUT);
 			} catch (Exception ex) {
 				throw new RuntimeException(ex);
 			}
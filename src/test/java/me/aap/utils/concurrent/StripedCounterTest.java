@@ -0,0 +1,34 @@
+package me.aap.utils.concurrent;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Andrey Pavlenko
+ */
+public class StripedCounterTest extends Assertions {
+
+	@Test
+	public void testConcurrentAdd() throws InterruptedException {
+		StripedCounter c = new StripedCounter();
+		Thread[] threads = new Thread[8];
+		int n = 100000;
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < n; j++) {
+					c.increment();
+					c.add(2);
+					c.decrement();
+				}
+			});
+			threads[i].start();
+		}
+
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertEquals(2L * n * threads.length, c.sum());
+	}
+}
@@ -0,0 +1,141 @@
+package me.aap.utils.concurrent;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.aap.utils.function.Cancellable;
+
+/**
+ * @author Andrey Pavlenko
+ */
+public class TimingWheelTest extends Assertions {
+
+	@Test
+	public void testExpire() throws InterruptedException {
+		AtomicInteger wakeups = new AtomicInteger();
+		TimingWheel w = new TimingWheel(10, 8, wakeups::incrementAndGet);
+		AtomicInteger counter = new AtomicInteger();
+		assertEquals(0, w.tick());
+
+		for (int i = 0; i < 100; i++) {
+			w.schedule(counter::incrementAndGet, i * 3, TimeUnit.MILLISECONDS);
+		}
+
+		assertEquals(1, wakeups.get());
+		assertEquals(100, w.size());
+
+		for (long start = System.currentTimeMillis(); w.size() != 0; ) {
+			assertTrue(w.tick() >= 0);
+			assertTrue(System.currentTimeMillis() - start < 5000);
+			Thread.sleep(5);
+		}
+
+		assertEquals(100, counter.get());
+		assertEquals(0, w.tick());
+	}
+
+	@Test
+	public void testNextDeadline() {
+		AtomicInteger wakeups = new AtomicInteger();
+		TimingWheel w = new TimingWheel(100, 512, wakeups::incrementAndGet);
+		AtomicInteger counter = new AtomicInteger();
+		assertEquals(0, w.tick());
+
+		// Beyond the wheel rotation
+		Cancellable far = w.schedule(counter::incrementAndGet, 60, TimeUnit.SECONDS);
+		assertEquals(1, wakeups.get());
+		long timeout = w.tick();
+		assertTrue((timeout > 59000) && (timeout <= 60100), () -> "timeout = " + timeout);
+
+		// Within the rotation - the owner is woken up to shorten the wait
+		Cancellable near = w.schedule(counter::incrementAndGet, 5, TimeUnit.SECONDS);
+		assertEquals(2, wakeups.get());
+		long timeout2 = w.tick();
+		assertTrue((timeout2 > 4000) && (timeout2 <= 5100), () -> "timeout = " + timeout2);
+
+		// A later timeout does not wake up the owner
+		w.schedule(counter::incrementAndGet, 30, TimeUnit.SECONDS);
+		assertEquals(2, wakeups.get());
+
+		assertTrue(near.cancel());
+		assertTrue(far.cancel());
+		assertEquals(0, counter.get());
+		assertEquals(1, w.size());
+	}
+
+	@Test
+	public void testManyFarDeadlines() throws InterruptedException {
+		AtomicInteger wakeups = new AtomicInteger();
+		TimingWheel w = new TimingWheel(10, 64, wakeups::incrementAndGet);
+		AtomicInteger counter = new AtomicInteger();
+		Cancellable[] far = new Cancellable[5000];
+
+		// Many rotations ahead, in all the buckets
+		for (int i = 0; i < far.length; i++) {
+			far[i] = w.schedule(counter::incrementAndGet, 60000 + i * 7, TimeUnit.MILLISECONDS);
+		}
+
+		w.schedule(counter::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+		assertEquals(2, wakeups.get());
+		Thread.sleep(50);
+
+		long timeout = w.tick();
+		assertEquals(1, counter.get());
+		assertTrue((timeout > 59000) && (timeout <= 60000), () -> "timeout = " + timeout);
+
+		// The cancelled earliest timeout could only shorten the wait
+		assertTrue(far[0].cancel());
+		long timeout2 = w.tick();
+		assertTrue((timeout2 > 0) && (timeout2 <= timeout), () -> "timeout = " + timeout2);
+
+		for (Cancellable c : far) c.cancel();
+		assertEquals(0, w.size());
+		assertEquals(0, w.tick());
+		assertEquals(2, wakeups.get());
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		TimingWheel w = new TimingWheel(10, 8, null);
+		AtomicInteger counter = new AtomicInteger();
+		Cancellable c1 = w.schedule(counter::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+		Cancellable c2 = w.schedule(counter::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+		Cancellable c3 = w.schedule(counter::incrementAndGet, 200, TimeUnit.MILLISECONDS);
+		assertTrue(c2.cancel());
+		assertFalse(c2.cancel());
+		assertEquals(2, w.size());
+
+		Thread.sleep(50);
+		w.tick();
+		assertEquals(1, counter.get());
+		assertFalse(c1.cancel());
+		assertTrue(c3.cancel());
+		assertEquals(0, w.size());
+	}
+
+	@Test
+	public void testReschedule() throws InterruptedException {
+		TimingWheel w = new TimingWheel(10, 4, null);
+		AtomicInteger counter = new AtomicInteger();
+		TimingWheel.Timeout t = new TimingWheel.Timeout() {
+			@Override
+			protected void expired() {
+				if (counter.incrementAndGet() < 3) w.schedule(this, 10);
+			}
+		};
+
+		w.schedule(t, 10);
+		assertThrows(IllegalStateException.class, () -> w.schedule(t, 10));
+
+		for (long start = System.currentTimeMillis(); w.size() != 0; ) {
+			w.tick();
+			assertTrue(System.currentTimeMillis() - start < 5000);
+			Thread.sleep(5);
+		}
+
+		assertEquals(3, counter.get());
+	}
+}
@@ -0,0 +1,68 @@
+package me.aap.utils.net;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Andrey Pavlenko
+ */
+public class ByteBufferPoolTest extends Assertions {
+
+	@Test
+	public void testAllocate() {
+		ByteBuffer bb = ByteBufferPool.allocate(1);
+		assertTrue(bb.isDirect());
+		assertEquals(ByteBufferPool.MIN_SIZE, bb.capacity());
+		assertEquals(8192, ByteBufferPool.allocate(4097).capacity());
+		assertEquals(ByteBufferPool.MAX_SIZE, ByteBufferPool.allocate(ByteBufferPool.MAX_SIZE).capacity());
+		assertFalse(ByteBufferPool.allocate(ByteBufferPool.MAX_SIZE + 1).isDirect());
+
+		bb.putInt(1);
+		ByteBufferPool.release(bb);
+		ByteBuffer bb2 = ByteBufferPool.allocate(100);
+		assertSame(bb, bb2);
+		assertEquals(0, bb2.position());
+		assertEquals(bb2.capacity(), bb2.limit());
+	}
+
+	@Test
+	public void testRef() {
+		ByteBufferPool.Ref ref = ByteBufferPool.get(10);
+		ByteBuffer bb = ref.getByteBuffer();
+		assertEquals(2, ref.retain().refCount());
+		ref.release();
+		assertSame(bb, ref.getByteBuffer());
+		assertSame(bb, ref.asArray().getByteBufferArray()[0]);
+		ref.release();
+		assertThrows(IllegalStateException.class, ref::getByteBuffer);
+		assertThrows(IllegalStateException.class, ref::retain);
+		assertSame(bb, ByteBufferPool.allocate(10));
+	}
+
+	@Test
+	public void testLeakDetector() throws InterruptedException {
+		BufferLeakDetector.setSampleRate(1);
+
+		try {
+			long leaks = BufferLeakDetector.getLeakCount();
+			ByteBuffer bb = ByteBufferPool.allocate(16384);
+			BufferLeakDetector.touch(bb);
+			ByteBufferPool.release(bb);
+			assertEquals(0, BufferLeakDetector.getTrackedCount());
+
+			ByteBufferPool.allocate(32768);
+			assertTrue(BufferLeakDetector.getTrackedCount() > 0);
+
+			for (int i = 0; (i < 100) && (BufferLeakDetector.checkLeaks() == 0); i++) {
+				System.gc();
+				Thread.sleep(10);
+			}
+
+			assertTrue(BufferLeakDetector.getLeakCount() > leaks);
+		} finally {
+			BufferLeakDetector.setSampleRate(0);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package me.aap.utils.net;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import me.aap.utils.async.Async;
+import me.aap.utils.async.FutureSupplier;
+import me.aap.utils.concurrent.NetThreadPool;
+import me.aap.utils.io.RandomAccessChannel;
+
+import static me.aap.utils.async.Completed.failed;
+
+/**
+ * JMH benchmarks of the {@link NetHandler} stack. Each operation performs a request/response
+ * round trip on all the channels concurrently, the sample time mode reports the percentiles.
+ * <p>
+ * The benchmarks are disabled by default. To run, specify the benchmark name regexp:
+ * <pre>
+ * ./gradlew testDebugUnitTest --tests me.aap.utils.net.NetBenchmark -Dbenchmark=echo
+ * </pre>
+ *
+ * @author Andrey Pavlenko
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class NetBenchmark {
+	@Param({"1", "10", "100", "1000"})
+	public int channels;
+	@Param({"false", "true"})
+	public boolean ssl;
+	@Param({"64", "65536"})
+	public int size;
+	private ExecutorService exec;
+	private NetHandler handler;
+	private NetServer echoServer;
+	private NetServer sendServer;
+	private NetChannel[] echoChannels;
+	private NetChannel[] sendChannels;
+	private ByteBuffer message;
+	private File file;
+	private RandomAccessFile raf;
+
+	@Test
+	@EnabledIfSystemProperty(named = "benchmark", matches = ".+")
+	public void run() throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(NetBenchmark.class.getName() + ".*" + System.getProperty("benchmark"))
+				// The class path of the Gradle test worker is not visible to a forked JVM
+				.forks(0)
+				.build()).run();
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		exec = new NetThreadPool(Runtime.getRuntime().availableProcessors());
+		handler = NetHandler.create(o -> o.executor = exec);
+		byte[] data = new byte[size];
+		ThreadLocalRandom.current().nextBytes(data);
+		message = ByteBuffer.allocateDirect(size);
+		message.put(data).flip();
+
+		file = File.createTempFile("NetBenchmark", null);
+		raf = new RandomAccessFile(file, "rw");
+		raf.write(data);
+		RandomAccessChannel fc = RandomAccessChannel.wrap(raf.getChannel());
+
+		echoServer = handler.bind(o -> {
+			o.ssl = ssl;
+			o.handler = NetBenchmark::echo;
+		}).get();
+		sendServer = handler.bind(o -> {
+			o.ssl = ssl;
+			o.handler = ch -> sendFile(ch, fc);
+		}).get();
+
+		echoChannels = connect(echoServer);
+		sendChannels = connect(sendServer);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		echoServer.close();
+		sendServer.close();
+		handler.close();
+		exec.shutdown();
+		raf.close();
+		//noinspection ResultOfMethodCallIgnored
+		file.delete();
+	}
+
+	/**
+	 * Write the message and read the echo on all the channels.
+	 */
+	@Benchmark
+	public void echo() throws Exception {
+		roundTrip(echoChannels, message).get();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void echoThroughput() throws Exception {
+		roundTrip(echoChannels, message).get();
+	}
+
+	/**
+	 * Request the file, sent with {@link NetChannel#send(RandomAccessChannel, long, long)},
+	 * on all the channels.
+	 */
+	@Benchmark
+	public void send() throws Exception {
+		roundTrip(sendChannels, ByteBuffer.wrap(new byte[]{1})).get();
+	}
+
+	private NetChannel[] connect(NetServer server) throws Exception {
+		NetChannel[] ch = new NetChannel[channels];
+
+		for (int i = 0; i < channels; i++) {
+			ch[i] = handler.connect(o -> {
+				o.ssl = ssl;
+				o.host = "localhost";
+				o.port = server.getPort();
+			}).get();
+		}
+
+		return ch;
+	}
+
+	private FutureSupplier<?> roundTrip(NetChannel[] ch, ByteBuffer request) {
+		FutureSupplier<?>[] tasks = new FutureSupplier[ch.length - 1];
+
+		for (int i = 1; i < ch.length; i++) {
+			tasks[i - 1] = roundTrip(ch[i], request);
+		}
+
+		return Async.all(roundTrip(ch[0], request), tasks);
+	}
+
+	private FutureSupplier<ByteBuffer> roundTrip(NetChannel ch, ByteBuffer request) {
+		int[] remaining = new int[]{size};
+
+		return ch.write(request.duplicate()).then(v -> ch.read().thenIterate(r -> {
+			ByteBuffer bb = r.get();
+			if (!bb.hasRemaining()) return failed(new EOFException());
+			remaining[0] -= bb.remaining();
+			return (remaining[0] <= 0) ? null : ch.read();
+		}));
+	}
+
+	private static void echo(NetChannel ch) {
+		ch.read().onCompletion((bb, err) -> {
+			if ((err != null) || !bb.hasRemaining()) {
+				ch.close();
+				return;
+			}
+
+			ch.write(bb).onCompletion((v, werr) -> {
+				if (werr == null) echo(ch);
+				else ch.close();
+			});
+		});
+	}
+
+	private void sendFile(NetChannel ch, RandomAccessChannel fc) {
+		ch.read().onCompletion((bb, err) -> {
+			if ((err != null) || !bb.hasRemaining()) {
+				ch.close();
+				return;
+			}
+
+			ch.send(fc, 0, size).onCompletion((v, serr) -> {
+				if (serr == null) sendFile(ch, fc);
+				else ch.close();
+			});
+		});
+	}
+}
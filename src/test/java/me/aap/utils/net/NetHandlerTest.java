@@ -7,17 +7,26 @@ import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import me.aap.utils.async.Async;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.concurrent.NetThreadPool;
 import me.aap.utils.log.Log;
@@ -55,11 +64,137 @@ public class NetHandlerTest extends Assertions {
 
 	@RepeatedTest(10)
 	public void test() throws Exception {
+		test(handler, 0);
+	}
+
+	@RepeatedTest(3)
+	public void testMultipleSelectors() throws Exception {
+		NetHandler h = NetHandler.create(o -> {
+			o.executor = exec;
+			o.selectorThreads = 4;
+		});
+
+		try {
+			test(h, 0);
+		} finally {
+			h.close();
+		}
+	}
+
+	@RepeatedTest(3)
+	public void testWriteBatch() throws Exception {
+		test(handler, 8192);
+	}
+
+	@RepeatedTest(3)
+	public void testIoRatio() throws Exception {
+		NetHandler h = NetHandler.create(o -> {
+			o.executor = exec;
+			o.ioRatio = 10;
+		});
+
+		try {
+			NetServer server = h.bind(o -> o.handler = ch -> {
+			}).get();
+			NetChannel ch = h.connect(o -> o.address = server.getBindAddress()).get(10, TimeUnit.SECONDS);
+			AtomicReference<Throwable> failed = new AtomicReference<>();
+			Thread io = new Thread(() -> {
+				try {
+					test(h, 0);
+				} catch (Throwable ex) {
+					failed.set(ex);
+				}
+			});
+			io.start();
+
+			// Called from another thread, suspendRead() submits a task to the loop. While the loop is
+			// busy, the tasks are queued without waking up the selector.
+			int ntasks = 10000;
+			long startWakeups = h.getWakeupCount();
+			long startSuppressed = h.getSuppressedWakeupCount();
+			for (int i = 0; i < ntasks; i++) {
+				ch.suspendRead();
+			}
+			long wakeups = h.getWakeupCount() - startWakeups;
+			long suppressed = h.getSuppressedWakeupCount() - startSuppressed;
+
+			io.join();
+			ch.close();
+			server.close();
+			assertNull(failed.get());
+			assertTrue(wakeups < ntasks, () -> "Wakeups: " + wakeups);
+			assertTrue(suppressed > 0);
+		} finally {
+			h.close();
+		}
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		NetHandler h = NetHandler.create(o -> {
+			o.executor = exec;
+			o.metrics = true;
+		});
+
+		try {
+			NetMetrics m = h.getMetrics();
+			assertNotNull(m);
+			NetMetrics.Snapshot s = m.snapshot();
+			test(h, 0);
+			assertEquals(100, m.getAcceptedCount());
+			assertEquals(2L * 100 * data.length, m.getBytesIn() + m.getBytesOut() - s.bytesIn - s.bytesOut);
+			assertTrue(m.getReadCount() > 0);
+			assertTrue(m.getSelectCount() > 0);
+			assertTrue(m.snapshot().getAcceptRate(s) >= 0);
+		} finally {
+			h.close();
+		}
+	}
+
+	@RepeatedTest(3)
+	public void testLoopback() throws Exception {
+		NetHandler h = NetHandler.create(o -> {
+			o.executor = exec;
+			o.loopback = true;
+		});
+
+		try {
+			test(h, 0);
+			test(h, 8192);
+			assertThrows(ExecutionException.class, () -> h.connect(o -> o.port = 1).get());
+		} finally {
+			h.close();
+		}
+	}
+
+	private static void test(NetHandler handler, int writeBatchSize) throws Exception {
 		int nclients = 100;
 		AtomicBoolean failed = new AtomicBoolean();
 
-		NetServer server = handler.bind(o ->
-				o.handler = ch -> ch.write(ByteBuffer.wrap(data)).thenRun(ch::close)).get();
+		NetServer server = handler.bind(o -> {
+			o.writeBatchSize = writeBatchSize;
+			o.handler = ch -> {
+				if (writeBatchSize == 0) {
+					ch.write(ByteBuffer.wrap(data)).thenRun(ch::close);
+					return;
+				}
+
+				Random rnd = ThreadLocalRandom.current();
+				boolean cork = rnd.nextBoolean();
+				FutureSupplier<Void> last = null;
+				if (cork) ch.cork();
+
+				for (int off = 0; off < data.length; ) {
+					int len = Math.min(data.length - off, 1 + rnd.nextInt(2048));
+					last = ch.write(ByteBuffer.wrap(data, off, len));
+					off += len;
+				}
+
+				if (cork) ch.flush();
+				if (last == null) ch.close();
+				else last.thenRun(ch::close);
+			};
+		}).get();
 		SocketAddress addr = server.getBindAddress();
 
 		FutureSupplier<?>[] tasks = new FutureSupplier[nclients];
@@ -97,6 +232,415 @@ public class NetHandlerTest extends Assertions {
 		assertFalse(failed.get());
 	}
 
+	@Test
+	public void testWatermark() throws Exception {
+		byte[] data = new byte[4 * 1024 * 1024];
+		ThreadLocalRandom.current().nextBytes(data);
+		byte[] checksum = sha1(data);
+		AtomicInteger blocked = new AtomicInteger();
+
+		NetServer server = handler.bind(o -> {
+			o.writeHighWatermark = 65536;
+			o.handler = ch -> {
+				int[] off = {0};
+
+				Async.iterate(() -> {
+					while (off[0] < data.length) {
+						int len = Math.min(16384, data.length - off[0]);
+						FutureSupplier<Void> w = ch.write(ByteBuffer.wrap(data, off[0], len));
+						off[0] += len;
+						if (off[0] == data.length) return w.thenRun(ch::close);
+
+						if (!ch.isWritable()) {
+							blocked.incrementAndGet();
+							return ch.whenWritable();
+						}
+					}
+
+					return null;
+				});
+			};
+		}).get();
+
+		NetChannel ch = handler.connect(o -> o.address = server.getBindAddress()).get();
+		ch.suspendRead();
+		FutureSupplier<ByteBuffer> read = ch.read();
+		Thread.sleep(300);
+		assertFalse(read.isDone());
+		ch.resumeRead();
+
+		MessageDigest md = sha1Digest();
+		md.update(read.get(5, TimeUnit.SECONDS));
+		ch.read().thenIterate(b -> {
+			ByteBuffer bb = b.get();
+			if (!bb.hasRemaining()) return null;
+			md.update(bb);
+			return ch.read();
+		}).get(20, TimeUnit.SECONDS);
+
+		assertArrayEquals(checksum, md.digest());
+		assertTrue(blocked.get() > 0);
+		server.close();
+	}
+
+	@Test
+	public void testMaxConnections() throws Exception {
+		List<NetChannel> accepted = new CopyOnWriteArrayList<>();
+		NetServer server = handler.bind(o -> {
+			o.maxConnections = 2;
+			o.acceptBatch = 4;
+			o.handler = ch -> {
+				accepted.add(ch);
+				ch.write(ByteBuffer.wrap(new byte[]{1}));
+			};
+		}).get();
+
+		try {
+			List<FutureSupplier<ByteBuffer>> reads = new ArrayList<>();
+
+			for (int i = 0; i < 4; i++) {
+				NetChannel ch = handler.connect(o -> o.address = server.getBindAddress()).get();
+				reads.add(ch.read());
+			}
+
+			reads.get(0).get(5, TimeUnit.SECONDS);
+			reads.get(1).get(5, TimeUnit.SECONDS);
+			Thread.sleep(200);
+			assertEquals(2, accepted.size());
+			assertFalse(reads.get(2).isDone());
+
+			accepted.get(0).close();
+			accepted.get(1).close();
+			reads.get(2).get(5, TimeUnit.SECONDS);
+			reads.get(3).get(5, TimeUnit.SECONDS);
+			assertEquals(4, accepted.size());
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testWriteRateLimit() throws Exception {
+		byte[] bytes = new byte[512 * 1024];
+		NetServer server = handler.bind(o -> {
+			o.writeRateLimit = 1024 * 1024;
+			o.writeRateBurst = 64 * 1024;
+			o.writeQuantum = 16 * 1024;
+			o.handler = ch -> ch.write(ByteBuffer.wrap(bytes)).thenRun(ch::close);
+		}).get();
+
+		try {
+			long start = System.currentTimeMillis();
+			NetChannel ch = handler.connect(o -> o.address = server.getBindAddress()).get();
+			long[] total = new long[1];
+
+			ch.read().thenIterate(b -> {
+				ByteBuffer bb = b.get();
+				if (!bb.hasRemaining()) return null;
+				total[0] += bb.remaining();
+				return ch.read();
+			}).get(10, TimeUnit.SECONDS);
+
+			ch.close();
+			assertEquals(bytes.length, total[0]);
+			// (512K - 64K burst) at 1M per second
+			assertTrue(System.currentTimeMillis() - start >= 400);
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testScatterRead() throws Exception {
+		NetServer server = handler.bind(o -> o.handler = ch -> ch.write(ByteBuffer.wrap(data)).thenRun(ch::close)).get();
+
+		try {
+			NetChannel ch = handler.connect(o -> o.address = server.getBindAddress()).get();
+			ByteBuffer b1 = ByteBuffer.allocate(1000);
+			ByteBuffer b2 = ByteBuffer.allocate(65536);
+			// A new array on each call - the array is released if nothing has been read
+			ByteBufferArraySupplier supplier = () -> {
+				b1.clear();
+				b2.clear();
+				return new ByteBuffer[]{b1, b2};
+			};
+			MessageDigest md = sha1Digest();
+
+			ch.scatterRead(supplier, null).thenIterate(r -> {
+				long n = 0;
+
+				for (ByteBuffer b : r.get()) {
+					n += b.remaining();
+					md.update(b);
+				}
+
+				return (n == 0) ? null : ch.scatterRead(supplier, null);
+			}).get(10, TimeUnit.SECONDS);
+
+			ch.close();
+			assertArrayEquals(checksum, md.digest());
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testInactivityTimeout() throws Exception {
+		NetHandler h = NetHandler.create(o -> {
+			o.executor = exec;
+			o.inactivityTimeout = 1;
+		});
+
+		try {
+			NetServer server = h.bind(o -> o.handler = ch -> {
+			}).get();
+			NetChannel ch = h.connect(o -> o.address = server.getBindAddress()).get();
+			assertTrue(ch.isOpen());
+			long start = System.currentTimeMillis();
+
+			while (ch.isOpen()) {
+				assertTrue(System.currentTimeMillis() - start < 3000);
+				Thread.sleep(50);
+			}
+
+			assertTrue(System.currentTimeMillis() - start >= 500);
+			assertTrue(h.getInactiveClosedCount() > 0);
+			server.close();
+		} finally {
+			h.close();
+		}
+	}
+
+	@Test
+	public void testHandshakeExecutor() throws Exception {
+		AtomicInteger tasks = new AtomicInteger();
+		Executor hsExec = t -> {
+			tasks.incrementAndGet();
+			exec.execute(t);
+		};
+		NetServer server = handler.bind(o -> {
+			o.ssl = true;
+			o.handshakeExecutor = hsExec;
+			o.handler = ch -> ch.write(ByteBuffer.wrap(new byte[]{1})).thenRun(ch::close);
+		}).get();
+		long count = handler.getHandshakeStats().getCount();
+
+		try {
+			NetChannel ch = handler.connect(o -> {
+				o.ssl = true;
+				o.host = "localhost";
+				o.port = server.getPort();
+				o.handshakeExecutor = hsExec;
+			}).get(10, TimeUnit.SECONDS);
+			assertEquals(1, ch.read().get(10, TimeUnit.SECONDS).get());
+			ch.close();
+			assertTrue(tasks.get() > 0);
+			assertTrue(handler.getHandshakeStats().getCount() >= count + 2);
+			assertTrue(handler.getHandshakeStats().getMaxTimeNanos() > 0);
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testSessionResumption() throws Exception {
+		NetServer server = handler.bind(o -> {
+			o.ssl = true;
+			o.handler = ch -> ch.write(ByteBuffer.wrap(new byte[]{1})).thenRun(ch::close);
+		}).get();
+		long hits = handler.getHandshakeStats().getSessionHits();
+		long misses = handler.getHandshakeStats().getSessionMisses();
+
+		try {
+			for (int i = 0; i < 3; i++) {
+				NetChannel ch = handler.connect(o -> {
+					o.ssl = true;
+					o.host = "localhost";
+					o.port = server.getPort();
+				}).get(10, TimeUnit.SECONDS);
+				assertEquals(1, ch.read().get(10, TimeUnit.SECONDS).get());
+				ch.close();
+			}
+
+			assertEquals(misses + 1, handler.getHandshakeStats().getSessionMisses());
+			assertEquals(hits + 2, handler.getHandshakeStats().getSessionHits());
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testSslRead() throws Exception {
+		byte[] data = new byte[1024 * 1024];
+		ThreadLocalRandom.current().nextBytes(data);
+		byte[] checksum = sha1(data);
+		NetServer server = handler.bind(o -> {
+			o.ssl = true;
+			o.handler = ch -> ch.write(ByteBuffer.wrap(data)).thenRun(ch::close);
+		}).get();
+
+		try {
+			// 0 - the default buffer. The records, not fitting into the buffer, are unwrapped to the
+			// pooled temporary buffer.
+			for (int size : new int[]{0, 100, 64 * 1024}) {
+				NetChannel ch = handler.connect(o -> {
+					o.ssl = true;
+					o.host = "localhost";
+					o.port = server.getPort();
+				}).get(10, TimeUnit.SECONDS);
+				MessageDigest md = sha1Digest();
+				ByteBuffer buf = ByteBuffer.allocate(Math.max(size, 1));
+
+				for (; ; ) {
+					ByteBuffer b;
+
+					if (size == 0) {
+						b = ch.read().get(10, TimeUnit.SECONDS);
+					} else {
+						buf.clear();
+						b = ch.read(buf).get(10, TimeUnit.SECONDS);
+					}
+
+					if (!b.hasRemaining()) break;
+					md.update(b);
+				}
+
+				ch.close();
+				assertArrayEquals(checksum, md.digest(), "Buffer size: " + size);
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	@RepeatedTest(3)
+	public void testSslWriteAggregation() throws Exception {
+		testSslWriteAggregation(false);
+		testSslWriteAggregation(true);
+	}
+
+	private static void testSslWriteAggregation(boolean cork) throws Exception {
+		int nclients = 10;
+		byte[] data = new byte[1024 * 1024];
+		ThreadLocalRandom.current().nextBytes(data);
+		byte[] checksum = sha1(data);
+
+		NetServer server = handler.bind(o -> {
+			o.ssl = true;
+			o.handler = ch -> {
+				Random rnd = ThreadLocalRandom.current();
+				FutureSupplier<Void> last = null;
+				if (cork) ch.cork();
+
+				// Small writes, pending while the previous one is wrapped, are wrapped into one record
+				for (int off = 0; off < data.length; ) {
+					int pos = off;
+					int len = Math.min(data.length - off, 1 + rnd.nextInt(256));
+					if (rnd.nextBoolean()) last = ch.write(ByteBuffer.wrap(data, off, len));
+					else last = ch.write(() -> ByteBuffer.wrap(data, pos, len));
+					off += len;
+				}
+
+				if (cork) ch.flush();
+				last.thenRun(ch::close);
+			};
+		}).get();
+
+		try {
+			FutureSupplier<?>[] tasks = new FutureSupplier[nclients];
+
+			for (int i = 0; i < nclients; i++) {
+				tasks[i] = handler.connect(o -> {
+					o.ssl = true;
+					o.host = "localhost";
+					o.port = server.getPort();
+				}).then(ch -> {
+					MessageDigest md = sha1Digest();
+
+					return ch.read().thenIterate(b -> {
+						ByteBuffer bb = b.get();
+
+						if (!bb.hasRemaining()) {
+							ch.close();
+							assertArrayEquals(checksum, md.digest(), "cork: " + cork);
+							return null;
+						}
+
+						md.update(bb);
+						return ch.read();
+					});
+				});
+			}
+
+			for (FutureSupplier<?> t : tasks) {
+				t.get(20, TimeUnit.SECONDS);
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testDatagram() throws Exception {
+		int n = 100;
+		CountDownLatch latch = new CountDownLatch(n);
+		NetDatagramChannel server = handler.bindDatagram(o -> {
+			o.host = "127.0.0.1";
+			o.handler = (ch, buf, from) -> ch.send(buf, from);
+		}).get();
+		NetDatagramChannel client = handler.bindDatagram(o -> {
+			o.host = "127.0.0.1";
+			o.handler = (ch, buf, from) -> {
+				if (buf.remaining() == 100) latch.countDown();
+			};
+		}).get();
+		SocketAddress addr = new InetSocketAddress("127.0.0.1", server.getPort());
+
+		try {
+			ByteBuffer msg = ByteBuffer.allocate(100).asReadOnlyBuffer();
+
+			for (int i = 0; i < n; i++) {
+				client.send(msg, addr).get(5, TimeUnit.SECONDS);
+				Thread.sleep(1);
+			}
+
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+		} finally {
+			server.close();
+			client.close();
+		}
+
+		assertFalse(server.isOpen());
+		assertThrows(ExecutionException.class, () -> client.send(ByteBuffer.allocate(1), addr).get());
+	}
+
+	@Test
+	public void testInline() throws Exception {
+		AtomicReference<Thread> acceptThread = new AtomicReference<>();
+		NetServer server = handler.bind(o -> {
+			o.inline = true;
+			o.handler = ch -> {
+				acceptThread.set(Thread.currentThread());
+				ch.write(ByteBuffer.wrap(new byte[]{1})).thenRun(ch::close);
+			};
+		}).get();
+
+		try {
+			NetChannel ch = handler.connect(o -> {
+				o.inline = true;
+				o.address = server.getBindAddress();
+			}).get(5, TimeUnit.SECONDS);
+			AtomicReference<Thread> readThread = new AtomicReference<>();
+			ByteBuffer bb = ch.read((b, err) -> readThread.set(Thread.currentThread())).get(5, TimeUnit.SECONDS);
+			assertEquals(1, bb.get());
+			ch.close();
+			assertTrue(acceptThread.get().getName().startsWith("SelectorHandler"));
+			assertTrue(readThread.get().getName().startsWith("SelectorHandler"));
+		} finally {
+			server.close();
+		}
+	}
+
 	@Test
 	public void testTimeout() throws Exception {
 		try {
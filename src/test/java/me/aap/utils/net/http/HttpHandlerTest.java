@@ -13,19 +13,26 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.net.StandardSocketOptions;
+import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import me.aap.utils.async.Async;
 import me.aap.utils.async.FutureSupplier;
 import me.aap.utils.async.Promise;
 import me.aap.utils.concurrent.NetThreadPool;
+import me.aap.utils.io.AsyncOutputStream;
 import me.aap.utils.io.MemOutputStream;
 import me.aap.utils.io.RandomAccessChannel;
 import me.aap.utils.log.Log;
@@ -447,6 +454,332 @@ public class HttpHandlerTest extends Assertions {
 		server.close();
 	}
 
+	@Test
+	public void testConnectionPool() throws Exception {
+		int nreq = 50;
+		int maxConn = 4;
+		Set<NetChannel> channels = ConcurrentHashMap.newKeySet();
+		AtomicInteger counter = new AtomicInteger(nreq);
+		Promise<Void> done = new Promise<>();
+		HttpConnectionHandler http = new HttpConnectionHandler();
+		http.addHandler("/pool", (p, m, v) -> req -> {
+			NetChannel channel = req.getChannel();
+			HttpVersion version = req.getVersion();
+			channels.add(channel);
+			Promise<Void> resp = new Promise<>();
+			// Delay the response to make the requests wait for the connections
+			handler.schedule(() -> channel.write(HttpResponseBuilder.supplier(b -> {
+				b.setStatusOk(version);
+				return b.build(ByteBuffer.wrap(new byte[]{1, 2}));
+			})).thenComplete(resp), 20, TimeUnit.MILLISECONDS);
+			return resp;
+		});
+		NetServer server = handler.bind(o -> o.handler = http).get();
+		String url = "http://localhost:" + server.getPort() + "/pool";
+
+		for (int i = 0; i < nreq; i++) {
+			HttpConnection.connect(o -> {
+				o.handler = handler;
+				o.url(url);
+				o.maxConnectionsPerHost = maxConn;
+				o.idleTimeout = 1;
+			}, (resp, err) -> {
+				if (err != null) {
+					done.completeExceptionally(err);
+					return completedVoid();
+				}
+
+				return resp.getPayload((payload, fail) -> {
+					if (fail != null) done.completeExceptionally(fail);
+					else if (payload.remaining() != 2)
+						done.completeExceptionally(new Exception("Invalid len: " + payload.remaining()));
+					else if (counter.decrementAndGet() == 0) done.complete(null);
+					return completedVoid();
+				});
+			});
+		}
+
+		done.get(10, TimeUnit.SECONDS);
+		HttpConnection.ConnectionId id = new HttpConnection.ConnectionId(new URL(url));
+		assertTrue(channels.size() <= maxConn, () -> "Connections: " + channels.size());
+		assertTrue(HttpConnectionPool.instance.getConnectionCount(id) <= maxConn);
+
+		// The idle connections are closed after the timeout
+		for (int i = 0; (i < 50) && (HttpConnectionPool.instance.getConnectionCount(id) != 0); i++) {
+			Thread.sleep(100);
+		}
+
+		assertEquals(0, HttpConnectionPool.instance.getConnectionCount(id));
+		server.close();
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = {false, true})
+	public void testStreamPayload(boolean chunked) throws Exception {
+		byte[] data = new byte[1024 * 1024];
+		Random rnd = new Random();
+		for (int i = 0; i < data.length; i++) data[i] = (byte) ('a' + rnd.nextInt(8));
+		MemOutputStream gz = new MemOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(gz)) {
+			out.write(data);
+		}
+
+		MemOutputStream resp = new MemOutputStream();
+		resp.write(("HTTP/1.1 200 Ok\r\nContent-Encoding: gzip\r\n").getBytes(US_ASCII));
+
+		if (chunked) {
+			resp.write("Transfer-Encoding: chunked\r\n\r\n".getBytes(US_ASCII));
+			for (int off = 0; off < gz.getCount(); ) {
+				int len = Math.min(gz.getCount() - off, 1 + rnd.nextInt(20000));
+				resp.write((Integer.toHexString(len) + "\r\n").getBytes(US_ASCII));
+				resp.write(gz.getBuffer(), off, len);
+				resp.write("\r\n".getBytes(US_ASCII));
+				off += len;
+			}
+			resp.write("0\r\n\r\n".getBytes(US_ASCII));
+		} else {
+			resp.write(("Content-Length: " + gz.getCount() + "\r\n\r\n").getBytes(US_ASCII));
+			resp.write(gz.getBuffer(), 0, gz.getCount());
+		}
+
+		HttpConnectionHandler http = new HttpConnectionHandler();
+		http.addHandler("/stream", (p, m, v) -> req ->
+				req.getChannel().write(ByteBuffer.wrap(resp.getBuffer(), 0, resp.getCount())));
+		NetServer server = handler.bind(o -> o.handler = http).get();
+		Promise<byte[]> done = new Promise<>();
+
+		HttpConnection.connect(o -> {
+			o.handler = handler;
+			o.url("http://localhost:" + server.getPort() + "/stream");
+		}, (r, err) -> {
+			if (err != null) {
+				done.completeExceptionally(err);
+				return completedVoid();
+			}
+
+			return new MemOutputStream().readFrom(r.readPayload(true)).onCompletion((out, fail) -> {
+				if (fail != null) done.completeExceptionally(fail);
+				else done.complete(Arrays.copyOf(out.getBuffer(), out.getCount()));
+			});
+		});
+
+		assertArrayEquals(data, done.get(10, TimeUnit.SECONDS));
+		server.close();
+	}
+
+	/**
+	 * The gzip payload is truncated in the deflate data or in the trailer, or the trailer is corrupted.
+	 */
+	@ParameterizedTest
+	@ValueSource(strings = {"data", "trailer", "crc"})
+	public void testTruncatedPayload(String mode) throws Exception {
+		byte[] data = new byte[64 * 1024];
+		new Random().nextBytes(data);
+		MemOutputStream gz = new MemOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(gz)) {
+			out.write(data);
+		}
+
+		int len = gz.getCount();
+		if (mode.equals("data")) len /= 2;
+		else if (mode.equals("trailer")) len -= 4;
+		else gz.getBuffer()[len - 8] ^= 1;
+
+		MemOutputStream resp = new MemOutputStream();
+		resp.write(("HTTP/1.1 200 Ok\r\nContent-Encoding: gzip\r\nContent-Length: " + len +
+				"\r\n\r\n").getBytes(US_ASCII));
+		resp.write(gz.getBuffer(), 0, len);
+
+		HttpConnectionHandler http = new HttpConnectionHandler();
+		http.addHandler("/truncated", (p, m, v) -> req ->
+				req.getChannel().write(ByteBuffer.wrap(resp.getBuffer(), 0, resp.getCount())));
+		NetServer server = handler.bind(o -> o.handler = http).get();
+		Promise<byte[]> done = new Promise<>();
+
+		HttpConnection.connect(o -> {
+			o.handler = handler;
+			o.url("http://localhost:" + server.getPort() + "/truncated");
+		}, (r, err) -> {
+			if (err != null) {
+				done.completeExceptionally(err);
+				return completedVoid();
+			}
+
+			MemOutputStream out = new MemOutputStream();
+			return r.writePayload(AsyncOutputStream.wrapOutputStream(out), true).onCompletion((v, fail) -> {
+				if (fail != null) done.completeExceptionally(fail);
+				else done.complete(Arrays.copyOf(out.getBuffer(), out.getCount()));
+			});
+		});
+
+		ExecutionException ex = assertThrows(ExecutionException.class,
+				() -> done.get(10, TimeUnit.SECONDS));
+		assertTrue(ex.getCause() instanceof IOException, ex.getCause().toString());
+		server.close();
+	}
+
+	@Test
+	public void testRouter() throws Exception {
+		HttpConnectionHandler http = new HttpConnectionHandler();
+		http.addHandler("/a", (p, m, v) -> req -> respond(req, "a"));
+		http.addHandler("/a", HttpMethod.POST, (p, m, v) -> req -> respond(req, "a-post"));
+		http.addHandler("/a/static", (p, m, v) -> req -> respond(req, "static"));
+		http.addHandler("/a/{id}", (p, m, v) -> req -> respond(req, "id=" + req.getPathParam("id")));
+		http.addHandler("/a/{id}/b/{x}", (p, m, v) -> req ->
+				respond(req, req.getPathParam("id") + "," + req.getPathParam("x")));
+		http.addHandler("/s/*", (p, m, v) -> req ->
+				respond(req, "prefix:" + new StringBuilder(req.getPath())));
+		assertThrows(IllegalArgumentException.class, () -> http.addHandler("/x/*/y", (p, m, v) -> null));
+		NetServer server = handler.bind(o -> o.handler = http).get();
+		String url = "http://localhost:" + server.getPort();
+
+		assertEquals("a", get(url + "/a", HttpMethod.GET));
+		assertEquals("a-post", get(url + "/a", HttpMethod.POST));
+		assertEquals("static", get(url + "/a/static", HttpMethod.GET));
+		assertEquals("id=123", get(url + "/a/123?q=1", HttpMethod.GET));
+		assertEquals("1,2", get(url + "/a/1/b/2", HttpMethod.GET));
+		assertEquals("prefix:/s", get(url + "/s", HttpMethod.GET));
+		assertEquals("prefix:/s/x/y", get(url + "/s/x/y", HttpMethod.GET));
+		assertEquals("404", get(url + "/a/1/c", HttpMethod.GET));
+		assertEquals("404", get(url + "/b", HttpMethod.GET));
+
+		http.removeHandler("/a/{id}");
+		assertEquals("404", get(url + "/a/123", HttpMethod.GET));
+		assertEquals("static", get(url + "/a/static", HttpMethod.GET));
+		server.close();
+	}
+
+	@Test
+	public void testHeaders() throws Exception {
+		Promise<String> reqHeaders = new Promise<>();
+		byte[] resp = ("HTTP/1.1 200 Ok\r\nX-Resp:  v1 \r\nx-resp: v2\r\nContent-Length: 0\r\n\r\n")
+				.getBytes(US_ASCII);
+		HttpConnectionHandler http = new HttpConnectionHandler();
+		http.addHandler("/h", (p, m, v) -> req -> {
+			StringBuilder sb = new StringBuilder();
+			req.forEachHeader((name, value) -> sb.append(name).append('=').append(value).append(';'));
+			sb.append(req.getHeader("x-a")).append('|').append(req.getHeader("X-B")).append('|')
+					.append(req.getHeader("missing"));
+			reqHeaders.complete(sb.toString());
+			return req.getChannel().write(ByteBuffer.wrap(resp));
+		});
+		NetServer server = handler.bind(o -> {
+			o.handler = http;
+			o.opt.put(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+		}).get();
+
+		// Send the request in small fragments to parse the headers across multiple reads
+		byte[] req = ("GET /h HTTP/1.1\r\nHost: localhost\r\nX-A: 1\r\nx-b:\t two words \r\n" +
+				"X-A: 3\r\n\r\n").getBytes(US_ASCII);
+		NetChannel ch = handler.connect(o -> {
+			o.address = server.getBindAddress();
+			o.opt.put(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+		}).get();
+		for (int off = 0; off < req.length; off += 3) {
+			int o = off;
+			ch.write(() -> ByteBuffer.wrap(req, o, Math.min(3, req.length - o)));
+		}
+
+		assertEquals("Host=localhost;X-A=1;x-b=two words;X-A=3;1|two words|null",
+				reqHeaders.get(10, TimeUnit.SECONDS));
+		ch.close();
+
+		Promise<String> respHeaders = new Promise<>();
+		HttpConnection.connect(o -> {
+			o.handler = handler;
+			o.url("http://localhost:" + server.getPort() + "/h");
+		}, (r, err) -> {
+			if (err != null) {
+				respHeaders.completeExceptionally(err);
+				return completedVoid();
+			}
+
+			respHeaders.complete(r.getHeader("X-RESP") + "|" + r.getHeader(HttpHeader.CONTENT_LENGTH));
+			return r.skipPayload();
+		});
+
+		assertEquals("v1|0", respHeaders.get(10, TimeUnit.SECONDS));
+		server.close();
+	}
+
+	private static FutureSupplier<?> respond(HttpRequest req, String text) {
+		return req.getChannel().write(HttpResponseBuilder.supplier(b -> {
+			b.setStatusOk(req.getVersion());
+			return b.build(ByteBuffer.wrap(text.getBytes(US_ASCII)));
+		}));
+	}
+
+	private String get(String url, HttpMethod method) throws Exception {
+		Promise<String> done = new Promise<>();
+
+		HttpConnection.connect(o -> {
+			o.handler = handler;
+			o.method = method;
+			o.url(url);
+		}, (resp, err) -> {
+			if (err != null) {
+				done.completeExceptionally(err);
+				return completedVoid();
+			}
+
+			if (resp.getStatusCode() != 200) {
+				done.complete(String.valueOf(resp.getStatusCode()));
+				return resp.skipPayload();
+			}
+
+			return resp.getPayload((payload, fail) -> {
+				if (fail != null) done.completeExceptionally(fail);
+				else done.complete(US_ASCII.decode(payload).toString());
+				return completedVoid();
+			});
+		});
+
+		return done.get(10, TimeUnit.SECONDS);
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"gzip,deflate", "deflate", "identity"})
+	public void testCompressResponse(String acceptEncoding) throws Exception {
+		byte[] data = new byte[256 * 1024];
+		Random rnd = new Random();
+		for (int i = 0; i < data.length; i++) data[i] = (byte) ('a' + rnd.nextInt(8));
+
+		HttpConnectionHandler http = new HttpConnectionHandler();
+		http.addHandler("/text", (p, m, v) -> req -> {
+			ContentEncoding enc = ContentEncoding.negotiate(req.getAcceptEncoding());
+			HttpResponseBuilder b = HttpResponseBuilder.create();
+			b.setStatusOk(req.getVersion());
+			b.addHeader(CONTENT_TYPE, "text/plain");
+			return req.getChannel().write(b.build(ByteBuffer.wrap(data), enc, "/text"));
+		});
+		NetServer server = handler.bind(o -> o.handler = http).get();
+		Promise<byte[]> done = new Promise<>();
+		String[] respEncoding = new String[1];
+
+		HttpConnection.connect(o -> {
+			o.handler = handler;
+			o.acceptEncoding = acceptEncoding;
+			o.url("http://localhost:" + server.getPort() + "/text");
+		}, (r, err) -> {
+			if (err != null) {
+				done.completeExceptionally(err);
+				return completedVoid();
+			}
+
+			CharSequence enc = r.getContentEncoding();
+			respEncoding[0] = (enc == null) ? null : enc.toString();
+			return new MemOutputStream().readFrom(r.readPayload(true)).onCompletion((out, fail) -> {
+				if (fail != null) done.completeExceptionally(fail);
+				else done.complete(Arrays.copyOf(out.getBuffer(), out.getCount()));
+			});
+		});
+
+		assertArrayEquals(data, done.get(10, TimeUnit.SECONDS));
+		assertEquals(acceptEncoding.equals("identity") ? null : acceptEncoding.split(",")[0],
+				respEncoding[0]);
+		server.close();
+	}
+
 	//	@Disabled
 	@ParameterizedTest
 	@ValueSource(strings = {